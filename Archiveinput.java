@@ -0,0 +1,186 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*****************************************************/
+/* NAME:        Archiveinput                         */
+/* DESCRIPTION: compressed inputs read in place.     */
+/*              gzip is inflated by a pipeline       */
+/*              thread ahead of the scanner; zip     */
+/*              entries are tokenized in parallel    */
+/*              and written out in archive order     */
+/*****************************************************/
+final class Archiveinput {
+	static final int BLOCK = 1 << 16;
+	static final int DEPTH = 4;		/* inflated blocks buffered ahead */
+
+	private Archiveinput() {
+	}
+
+	/**********************************************/
+	/* NAME:	open_gzip                     */
+	/* INPUT:       a .gz filename                */
+	/* OUTPUT:      the decompressed bytes        */
+	/**********************************************/
+	static InputStream open_gzip(String fname) throws IOException {
+		InputStream raw = Files.newInputStream(Paths.get(fname));
+		try {
+			return new Pipelinestream(new GZIPInputStream(raw, BLOCK), "gunzip " + fname);
+		} catch (IOException e) {
+			raw.close();
+			throw e;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print_zip                     */
+	/* INPUT:       the tokenizer settings, a zip */
+	/*              archive and the output        */
+	/* DESCRIPTION: each entry is printed as a    */
+	/*              file,"name". line followed by */
+	/*              its tokens. at most 2*threads */
+	/*              entries are held in memory    */
+	/**********************************************/
+	static void print_zip(Printtokens proto, Path zip, PrintStream out) throws IOException {
+		int threads = proto.threads;
+		try (ZipFile zf = new ZipFile(zip.toFile())) {
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+				Enumeration<? extends ZipEntry> entries = zf.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					if (entry.isDirectory())
+						continue;
+					window.add(pool.submit(() -> tokenize_entry(proto, zf, entry)));
+					if (window.size() >= threads * 2)
+						out.write(window.remove().get());
+				}
+				while (!window.isEmpty())
+					out.write(window.remove().get());
+				out.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted reading " + zip);
+			} catch (ExecutionException e) {
+				throw new IOException("can't tokenize an entry of " + zip, e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	private static byte[] tokenize_entry(Printtokens proto, ZipFile zf, ZipEntry entry) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Printtokens t = proto.fork();
+		t.out = new PrintStream(bos);
+		t.out.print("file,\"" + entry.getName() + "\".\n");
+		try (Charstream cs = new Charstream(new InputStreamReader(zf.getInputStream(entry)))) {
+			String tok = t.get_token(cs);
+			while (tok != null) {
+				t.print_token(tok);
+				tok = t.get_token(cs);
+			}
+		}
+		t.out.flush();
+		return bos.toByteArray();
+	}
+
+	/*****************************************************/
+	/* NAME:        Pipelinestream                       */
+	/* DESCRIPTION: reads its source on its own thread   */
+	/*              into a bounded queue of blocks, so   */
+	/*              decompression overlaps tokenizing    */
+	/*****************************************************/
+	static final class Pipelinestream extends InputStream {
+		private static final byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(DEPTH);
+		private final Thread producer;
+		private volatile IOException failure;
+		private byte[] block = new byte[0];
+		private int pos = 0;
+		private boolean done = false;
+
+		Pipelinestream(InputStream src, String name) {
+			producer = new Thread(() -> pump(src), name);
+			producer.setDaemon(true);
+			producer.start();
+		}
+
+		private void pump(InputStream src) {
+			try (InputStream in = src) {
+				while (true) {
+					byte[] b = new byte[BLOCK];
+					int n = in.readNBytes(b, 0, BLOCK);
+					if (n == 0)
+						break;
+					queue.put(n == BLOCK ? b : Arrays.copyOf(b, n));
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				return;		/* closed by the reader */
+			}
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				/* reader is gone */
+			}
+		}
+
+		private boolean next_block() throws IOException {
+			if (done)
+				return false;
+			try {
+				block = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			pos = 0;
+			if (block == END) {
+				done = true;
+				if (failure != null)
+					throw failure;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == block.length && !next_block())
+				return -1;
+			return block[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == block.length && !next_block())
+				return -1;
+			int n = Math.min(len, block.length - pos);
+			System.arraycopy(block, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			producer.interrupt();
+		}
+	}
+}
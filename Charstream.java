@@ -0,0 +1,390 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*****************************************************/
+/* NAME:        Charstream                           */
+/* DESCRIPTION: the scanner's own input buffer.      */
+/*              reads a block at a time from a       */
+/*              Reader, an InputStream or a          */
+/*              ReadableByteChannel and gives one    */
+/*              character of lookahead with no mark  */
+/*              support needed from the source.      */
+/*              byte sources are decoded in the      */
+/*              platform charset, as an              */
+/*              InputStreamReader does, so every     */
+/*              input mode sees the same characters; */
+/*              their offsets stay byte offsets, so  */
+/*              they can be seeked to, but columns   */
+/*              count chars like a Reader's          */
+/*****************************************************/
+final class Charstream implements Closeable {
+	static final int EOF = -1;
+	static final int BUF_SIZE = 1 << 16;
+	static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();	/* idle blocks kept, about one per concurrent session */
+
+	private static final ArrayBlockingQueue<char[]> char_pool = new ArrayBlockingQueue<>(POOL_SIZE);
+	private static final ArrayBlockingQueue<byte[]> byte_pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	private final Reader reader;
+	private final InputStream in;
+	private final ReadableByteChannel channel;
+	private char[] buf;
+	private byte[] raw;			/* staging block for byte sources */
+	private ByteBuffer rawbuf;
+	private CharBuffer charbuf;
+	private final CharsetDecoder decoder;
+	private CharsetDecoder mapper;		/* decodes a block again to find each char's byte */
+	private CharBuffer one;
+	private int have = 0;			/* bytes in raw */
+	private int used = 0;			/* of them, decoded into buf */
+	private boolean last;			/* the block ends the input */
+	private int[] map;			/* byte offset in raw of each char in buf */
+	private boolean mapped;
+	private int pos = 0;
+	private int lim = 0;
+	private long base = 0;			/* source offset of buf[0] */
+	private long char_base = 0;		/* chars before buf[0] */
+
+	private boolean tracking = false;	/* line/column tracking, off by default */
+	private Lineindex index;
+	private int counted = 0;		/* buf index up to which newlines are counted */
+	private long line = 1;
+	private long line_start = 0;
+	private long line_chars = 0;		/* chars before the line start */
+	long token_offset;			/* position of the last marked token */
+	long token_line;
+	long token_col;				/* in chars, for every source */
+	long token_line_start;			/* source offset of its line */
+
+	Charstream(Reader reader) {
+		this(reader, null, null);
+	}
+
+	Charstream(InputStream in) {
+		this(null, in, null);
+	}
+
+	Charstream(ReadableByteChannel channel) {
+		this(null, null, channel);
+	}
+
+	private Charstream(Reader reader, InputStream in, ReadableByteChannel channel) {
+		if (reader == null && in == null && channel == null)
+			throw new NullPointerException("no input source");
+		this.reader = reader;
+		this.in = in;
+		this.channel = channel;
+		char[] c = char_pool.poll();
+		this.buf = c != null ? c : new char[BUF_SIZE];
+		if (reader == null) {
+			byte[] b = byte_pool.poll();
+			this.raw = b != null ? b : new byte[BUF_SIZE];
+			this.rawbuf = ByteBuffer.wrap(raw);
+			this.charbuf = CharBuffer.wrap(buf);
+			this.decoder = decoder();
+		} else {
+			this.raw = null;
+			this.decoder = null;
+		}
+	}
+
+	/* what InputStreamReader uses: the platform charset, bad input replaced */
+	private static CharsetDecoder decoder() {
+		return Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**********************************************/
+	/* NAME:	get_char                      */
+	/* OUTPUT:      a character; when EOF, return -1 */
+	/**********************************************/
+	int get_char() throws IOException {
+		if (pos < lim)
+			return buf[pos++];
+		if (fill() <= 0)
+			return EOF;
+		return buf[pos++];
+	}
+
+	/**********************************************/
+	/* NAME:	unget_char                    */
+	/* DESCRIPTION: push back the last character  */
+	/*              returned by get_char. must not */
+	/*              be called after an EOF         */
+	/**********************************************/
+	void unget_char() {
+		pos--;
+	}
+
+	/**********************************************/
+	/* NAME:	skip_comment                  */
+	/* OUTPUT:      the character that ended the  */
+	/*              comment (consumed), or EOF    */
+	/* DESCRIPTION: skip the rest of a comment    */
+	/*              without handing out its       */
+	/*              characters one by one         */
+	/**********************************************/
+	int skip_comment() throws IOException {
+		while (true) {
+			for (int i = pos; i < lim; i++) {
+				char c = buf[i];
+				if (c == '\n' || c == '\r' || c == '\t') {
+					pos = i + 1;
+					return c;
+				}
+			}
+			pos = lim;
+			if (fill() <= 0)
+				return EOF;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	skip_string                   */
+	/* OUTPUT:      true when the rest of a string */
+	/*              and its closing delimiter were */
+	/*              skipped                       */
+	/* DESCRIPTION: only looks inside the current */
+	/*              block; an unclosed string (an */
+	/*              error token) or one running   */
+	/*              past the block is left unread */
+	/**********************************************/
+	boolean skip_string(char delim) {
+		for (int i = pos; i < lim; i++) {
+			char c = buf[i];
+			if (c == delim) {
+				pos = i + 1;
+				return true;
+			}
+			if (c == '\n' || c == '\r' || c == '\t')
+				return false;
+		}
+		return false;
+	}
+
+	/**********************************************/
+	/* NAME:	offset                        */
+	/* OUTPUT:      source offset of the next     */
+	/*              character get_char returns    */
+	/**********************************************/
+	long offset() {
+		return at(pos);
+	}
+
+	/* source offset of the character get_char returned last, as mark_token records it */
+	long token_start() {
+		return at(pos - 1);
+	}
+
+	/**********************************************/
+	/* NAME:	track_positions               */
+	/* INPUT:       a Lineindex to fill, or null  */
+	/* DESCRIPTION: turn on line counting. lines  */
+	/*              are counted in bulk once per  */
+	/*              block and, between blocks,    */
+	/*              only up to a marked token     */
+	/**********************************************/
+	void track_positions(Lineindex index) {
+		this.tracking = true;
+		this.index = index;
+	}
+
+	boolean tracking() {
+		return tracking;
+	}
+
+	/* the last character consumed, or EOF when the block starts with the next one */
+	int last_char() {
+		return pos > 0 && buf != null ? buf[pos - 1] : EOF;
+	}
+
+	/**********************************************/
+	/* NAME:	mark_token                    */
+	/* DESCRIPTION: record offset, line and column */
+	/*              of the character just returned */
+	/*              by get_char                   */
+	/**********************************************/
+	void mark_token() {
+		count_lines(pos - 1);
+		token_offset = token_start();
+		token_line = line;
+		token_line_start = line_start;
+		token_col = char_base + pos - line_chars;
+	}
+
+	private void count_lines(int to) {
+		for (int i = counted; i < to; i++) {
+			if (buf[i] == '\n') {
+				line++;
+				line_start = at(i + 1);
+				line_chars = char_base + i + 1;
+				if (index != null)
+					index.add_line(line, line_start);
+			}
+		}
+		if (to > counted)
+			counted = to;
+	}
+
+	/**********************************************/
+	/* NAME:	start_at                      */
+	/* INPUT:       source offset and line number */
+	/*              the source is positioned at   */
+	/* DESCRIPTION: for scans that begin mid-file */
+	/*              at a line start; call before  */
+	/*              the first get_char            */
+	/**********************************************/
+	void start_at(long offset, long line) {
+		this.base = offset;
+		this.char_base = 0;
+		this.line = line;
+		this.line_start = offset;
+		this.line_chars = 0;
+	}
+
+	Object source() {
+		return reader != null ? reader : in != null ? in : channel;
+	}
+
+	private int fill() throws IOException {
+		if (tracking) {
+			count_lines(lim);
+			counted = 0;
+		}
+		base += reader != null ? lim : used;
+		char_base += lim;
+		pos = 0;
+		lim = 0;
+		int n = reader != null ? reader.read(buf, 0, buf.length) : decode();
+		if (n > 0)
+			lim = n;
+		return n;
+	}
+
+	/**********************************************/
+	/* NAME:	decode                        */
+	/* OUTPUT:      chars decoded into buf, or -1 */
+	/* DESCRIPTION: the bytes of a character cut  */
+	/*              by the end of a read are kept */
+	/*              for the next block            */
+	/**********************************************/
+	private int decode() throws IOException {
+		System.arraycopy(raw, used, raw, 0, have - used);
+		have -= used;
+		used = 0;
+		mapped = false;
+		while (true) {
+			int r;
+			if (in != null) {
+				r = in.read(raw, have, raw.length - have);
+			} else {
+				rawbuf.limit(raw.length).position(have);
+				r = channel.read(rawbuf);
+			}
+			if (r < 0 && have == 0)
+				return EOF;
+			last = r < 0;
+			if (r > 0)
+				have += r;
+			rawbuf.limit(have).position(0);
+			charbuf.clear();
+			decoder.decode(rawbuf, charbuf, last);
+			if (last)
+				decoder.flush(charbuf);
+			used = rawbuf.position();
+			if (charbuf.position() > 0 || last)
+				return charbuf.position();
+		}
+	}
+
+	/* source offset of buf[i], for i up to lim */
+	private long at(int i) {
+		if (reader == null && lim != used) {	/* not all one byte chars */
+			if (!mapped)
+				map_block();
+			return base + map[i];
+		}
+		return base + i;
+	}
+
+	private void map_block() {
+		if (map == null) {
+			map = new int[buf.length + 1];
+			mapper = decoder();
+			one = CharBuffer.allocate(2);
+		}
+		mapper.reset();
+		rawbuf.limit(used).position(0);
+		int c = 0;
+		while (c < lim) {
+			int b = rawbuf.position();
+			one.clear().limit(1);
+			mapper.decode(rawbuf, one, last);
+			if (one.position() == 0) {	/* a surrogate pair */
+				one.limit(2);
+				mapper.decode(rawbuf, one, last);
+			}
+			if (one.position() == 0)
+				break;
+			for (int k = 0; k < one.position(); k++)
+				map[c++] = b;
+		}
+		while (c < lim)
+			map[c++] = used;
+		map[lim] = used;
+		mapped = true;
+	}
+
+	/**********************************************/
+	/* NAME:	skip_rest                     */
+	/* OUTPUT:      the characters left, read a   */
+	/*              block at a time and dropped   */
+	/**********************************************/
+	long skip_rest() throws IOException {
+		long n = lim - pos;
+		pos = lim;
+		int r;
+		while ((r = fill()) > 0)
+			n += r;
+		pos = lim;
+		return n;
+	}
+
+	/**********************************************/
+	/* NAME:	release                       */
+	/* DESCRIPTION: hand the blocks back to the   */
+	/*              pool without closing the      */
+	/*              source; the stream is unusable */
+	/*              afterwards                    */
+	/**********************************************/
+	void release() {
+		if (buf != null)
+			char_pool.offer(buf);
+		if (raw != null)
+			byte_pool.offer(raw);
+		buf = null;
+		raw = null;
+		rawbuf = null;
+		charbuf = null;
+	}
+
+	static int pooled_blocks() {
+		return char_pool.size() + byte_pool.size();
+	}
+
+	public void close() throws IOException {
+		release();
+		if (reader != null) reader.close();
+		if (in != null) in.close();
+		if (channel != null) channel.close();
+	}
+}
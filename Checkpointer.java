@@ -0,0 +1,251 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************/
+/* NAME:        Checkpointer                         */
+/* DESCRIPTION: prints a file's tokens to an output  */
+/*              file a chunk at a time, each chunk   */
+/*              ending at a newline, and every so    */
+/*              many input bytes records where the   */
+/*              input and output stand and the type  */
+/*              counts so far in a sidecar next to   */
+/*              the output. a run that dies resumes  */
+/*              from its last checkpoint: the output */
+/*              is cut back to it and the input      */
+/*              read on from there. the output is    */
+/*              synced and the sidecar written on a  */
+/*              background thread; when the last one */
+/*              is still being saved a checkpoint is */
+/*              skipped, so printing never waits     */
+/*****************************************************/
+final class Checkpointer implements Closeable {
+	static final String SUFFIX = ".ckpt";
+	static final int MAGIC = 0x50544350;	/* "PTCP" */
+	static final int VERSION = 1;
+	static final int CHUNK = 1 << 20;
+	static final long DEFAULT_EVERY = 64L << 20;
+
+	private final Printtokens t;
+	private final Path sidecar;
+	private final FileChannel in;
+	private final FileChannel oc;
+	private final InputStream src;
+	private final PrintStream o;
+	private final long file_length;
+	private final long file_mtime;
+	private byte[] buf;
+	private int len = 0;		/* bytes in buf not printed yet */
+	private final ExecutorService saver = Executors.newSingleThreadExecutor(r -> {
+		Thread th = new Thread(r, "checkpoint");
+		th.setDaemon(true);
+		return th;
+	});
+	private final Semaphore slot = new Semaphore(1);
+	private volatile IOException failure;	/* of the last save, reported by the next */
+
+	long every = DEFAULT_EVERY;	/* input bytes between checkpoints */
+	final long[] counts = new long[Tokencounts.TYPES.length];
+	long in_offset;			/* the input printed so far */
+	long saved;			/* in_offset of the last checkpoint taken */
+	long checkpoints;
+	long skipped;
+
+	private Checkpointer(Printtokens t, Path input, Path output, int chunk, long in_offset, long out_offset) throws IOException {
+		this.t = t.fork();
+		this.sidecar = sidecar(output);
+		this.file_length = Files.size(input);
+		this.file_mtime = Files.getLastModifiedTime(input).toMillis();
+		this.buf = new byte[chunk];
+		this.in_offset = in_offset;
+		this.saved = in_offset;
+		this.in = FileChannel.open(input);
+		this.in.position(in_offset);
+		this.src = Channels.newInputStream(in);
+		this.oc = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		this.oc.truncate(out_offset);
+		this.oc.position(out_offset);
+		this.o = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(oc), 1 << 16));
+		this.t.out = o;
+	}
+
+	static Path sidecar(Path output) {
+		return output.resolveSibling(output.getFileName() + SUFFIX);
+	}
+
+	/**********************************************/
+	/* NAME:	start                         */
+	/* INPUT:       tokenizer settings, the input */
+	/*              and the output, which is      */
+	/*              overwritten                   */
+	/**********************************************/
+	static Checkpointer start(Printtokens t, Path input, Path output, int chunk) throws IOException {
+		Files.deleteIfExists(sidecar(output));
+		return new Checkpointer(t, input, output, chunk, 0, 0);
+	}
+
+	/**********************************************/
+	/* NAME:	resume                        */
+	/* INPUT:       as start                      */
+	/* DESCRIPTION: picks up from the sidecar of  */
+	/*              output; the input must be as  */
+	/*              it was when the run started   */
+	/**********************************************/
+	static Checkpointer resume(Printtokens t, Path input, Path output, int chunk) throws IOException {
+		Path ck = sidecar(output);
+		if (!Files.exists(ck))
+			throw new IOException("No checkpoint of " + output + " to resume from");
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(ck)))) {
+			if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+				throw new IOException(ck + " is not a checkpoint");
+			long length = dis.readLong();
+			long mtime = dis.readLong();
+			long in_offset = dis.readLong();
+			long out_offset = dis.readLong();
+			if (Files.size(input) != length || Files.getLastModifiedTime(input).toMillis() != mtime)
+				throw new IOException(input + " changed since the checkpoint");
+			if (Files.size(output) < out_offset)
+				throw new IOException(output + " is shorter than at the checkpoint");
+			long[] counts = new long[Tokencounts.TYPES.length];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = dis.readLong();
+			Checkpointer c = new Checkpointer(t, input, output, chunk, in_offset, out_offset);
+			System.arraycopy(counts, 0, c.counts, 0, counts.length);
+			return c;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* DESCRIPTION: prints the rest of the input; */
+	/*              once it is all out there is   */
+	/*              nothing to resume and the     */
+	/*              sidecar goes                  */
+	/**********************************************/
+	void run() throws IOException {
+		while (step())
+			;
+		finish();
+	}
+
+	/**********************************************/
+	/* NAME:	step                          */
+	/* OUTPUT:      false at the end of the input */
+	/* DESCRIPTION: reads, and prints the lines   */
+	/*              read in full                  */
+	/**********************************************/
+	boolean step() throws IOException {
+		int n = src.read(buf, len, buf.length - len);
+		if (n < 0) {
+			if (len > 0)
+				chunk(len);
+			return false;
+		}
+		len += n;
+		int cut = len;
+		while (cut > 0 && buf[cut - 1] != '\n')
+			cut--;
+		if (cut == 0) {
+			if (len == buf.length)	/* one line longer than the buffer */
+				buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+			return true;
+		}
+		chunk(cut);
+		if (in_offset - saved >= every)
+			checkpoint();
+		return true;
+	}
+
+	private void chunk(int cut) throws IOException {
+		Tokencounts.print(t, new ByteArrayInputStream(buf, 0, cut), counts);
+		System.arraycopy(buf, cut, buf, 0, len - cut);
+		len -= cut;
+		in_offset += cut;
+	}
+
+	/* hands the positions to the saver, unless it is still busy with the last ones */
+	private void checkpoint() throws IOException {
+		if (failure != null)
+			throw new IOException("Can't save a checkpoint", failure);
+		saved = in_offset;
+		if (!slot.tryAcquire()) {
+			skipped++;
+			return;
+		}
+		o.flush();
+		long out_offset = oc.position();
+		long at = in_offset;
+		long[] c = counts.clone();
+		checkpoints++;
+		saver.execute(() -> {
+			try {
+				save(at, out_offset, c);
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				slot.release();
+			}
+		});
+	}
+
+	/* the output up to out_offset on disk first, then the sidecar naming it */
+	private void save(long at, long out_offset, long[] c) throws IOException {
+		oc.force(false);
+		Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(file_length);
+			dos.writeLong(file_mtime);
+			dos.writeLong(at);
+			dos.writeLong(out_offset);
+			for (long n : c)
+				dos.writeLong(n);
+			dos.flush();
+			ch.force(true);
+		}
+		Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* all printed: the output out, and no checkpoint left behind */
+	void finish() throws IOException {
+		o.flush();
+		if (o.checkError())
+			throw new IOException("Can't write the output");
+		drain();
+		oc.force(false);
+		Files.deleteIfExists(sidecar);
+	}
+
+	private void drain() {
+		saver.shutdown();
+		try {
+			saver.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* stops, keeping the last checkpoint */
+	public void close() throws IOException {
+		drain();
+		o.close();
+		in.close();
+	}
+
+	void report(PrintStream out) {
+		Tokencounts.report(counts, out);
+		out.print("checkpoints," + checkpoints + ",skipped " + skipped + ".\n");
+	}
+}
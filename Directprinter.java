@@ -0,0 +1,389 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*****************************************************/
+/* NAME:        Directprinter                        */
+/* DESCRIPTION: print_token for a mapped input file, */
+/*              writing bytes instead of Strings.    */
+/*              short tokens are formatted into a    */
+/*              staging buffer; the body of a long   */
+/*              string or comment is not copied at   */
+/*              all but handed to a gathering write  */
+/*              as a slice of the input mapping,     */
+/*              between its prefix and suffix.       */
+/*              non-ASCII text is encoded in the     */
+/*              platform charset, as print_token's   */
+/*              PrintStream encodes it               */
+/*****************************************************/
+final class Directprinter {
+	static final int REGION = 1 << 30;	/* bytes per input or output mapping */
+	static final int LONG_BODY = 256;	/* bodies at least this long are not copied */
+	static final int BATCH = 1024;		/* buffers per gathering write */
+	static final int STAGING = 1 << 16;
+
+	private final Printtokens t;
+	private final FileChannel in;
+	private final MappedByteBuffer[] regions;
+	private final byte[][] spec_lines;	/* "name.\n" of each special symbol */
+
+	private ByteBuffer staging = ByteBuffer.allocate(STAGING);
+	private int staged = 0;			/* start of the part not yet in the batch */
+	private final ByteBuffer[] batch = new ByteBuffer[BATCH];
+	private int batched = 0;
+	private long written = 0;
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private static final byte[] ERROR = bytes("error,\"");
+	private static final byte[] NUMERIC = bytes("numeric,");
+	private static final byte[] STRING = bytes("string,");
+	private static final byte[] CHARACTER = bytes("character,\"");
+	private static final byte[] COMMENT = bytes("comment,\"");
+	private static final byte[] END = bytes(".\n");
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	Directprinter(Printtokens t, FileChannel in) throws IOException {
+		this.t = t;
+		this.in = in;
+		long size = in.size();
+		regions = new MappedByteBuffer[(int) ((size + REGION - 1) / REGION)];
+		for (int i = 0; i < regions.length; i++) {
+			long at = (long) i * REGION;
+			regions[i] = in.map(FileChannel.MapMode.READ_ONLY, at, Math.min(REGION, size - at));
+		}
+		spec_lines = t.grammar.spec_lines.clone();
+		for (int c = 0; c < Grammar.TABLE; c++) {	/* non-ASCII names, as print_spec_symbol prints them */
+			if (spec_lines[c] == null && t.grammar.spec_names[c] != null)
+				spec_lines[c] = (t.grammar.spec_names[c] + ".\n").getBytes(Charset.defaultCharset());
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print                         */
+	/* INPUT:       the output channel            */
+	/* OUTPUT:      the number of bytes written;  */
+	/*              the same bytes print_token    */
+	/*              writes for every token        */
+	/**********************************************/
+	long print(GatheringByteChannel out) throws IOException {
+		written = 0;
+		in.position(0);
+		Charstream cs = new Charstream(in);
+		try {
+			Tokencursor cur = new Tokencursor(t, cs);
+			while (cur.next()) {
+				if (t.shown != null && !t.shown[cur.type])
+					continue;
+				format(cur);
+				if (batched >= BATCH - 8 || staging.remaining() < LONG_BODY + 16)
+					flush(out);
+			}
+			flush(out);
+		} finally {
+			cs.release();
+		}
+		return written;
+	}
+
+	private void format(Tokencursor cur) {
+		char[] a = cur.text;
+		int len = cur.length;
+		switch (cur.type) {
+		case Printtokens.spec_symbol:
+			byte[] line = a[0] < Grammar.TABLE ? spec_lines[a[0]] : null;
+			if (line != null)
+				put(line);
+			break;
+		case Printtokens.keyword:
+			quoted(Printtokens.KEYWORD_PREFIX, a, len);
+			break;
+		case Printtokens.identifier:
+			quoted(Printtokens.IDENTIFIER_PREFIX, a, len);
+			break;
+		case Printtokens.num_constant:
+			put(NUMERIC);
+			body(-1, a, len);
+			put(END);
+			break;
+		case Printtokens.str_constant:
+			put(STRING);
+			body(cur.offset, a, len);
+			put(END);
+			break;
+		case Printtokens.char_constant:
+			put(CHARACTER);
+			put(a, 1, 1);
+			put(Printtokens.QUOTE_END);
+			break;
+		case Printtokens.comment:
+			put(COMMENT);
+			body(cur.offset, a, len);
+			put(Printtokens.QUOTE_END);
+			break;
+		default:
+			quoted(ERROR, a, len);
+			break;
+		}
+	}
+
+	private void quoted(byte[] prefix, char[] a, int len) {
+		put(prefix);
+		body(-1, a, len);
+		put(Printtokens.QUOTE_END);
+	}
+
+	private void put(byte[] b) {
+		staging.put(b);
+	}
+
+	private void put(char[] a, int from, int len) {
+		int end = from + len;
+		for (int i = from; i < end; i++) {
+			if (a[i] >= 0x80) {
+				encode(a, i, end);
+				return;
+			}
+			staging.put((byte) a[i]);
+		}
+	}
+
+	/* the rest of a token from its first non-ASCII char, growing the staging buffer as needed */
+	private void encode(char[] a, int from, int to) {
+		CharBuffer c = CharBuffer.wrap(a, from, to - from);
+		encoder.reset();
+		while (encoder.encode(c, staging, true).isOverflow())
+			grow((int) (c.remaining() * encoder.maxBytesPerChar()));
+		encoder.flush(staging);
+	}
+
+	private static boolean ascii(char[] a, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[i] >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	/* a short body is staged; a long one becomes slices of the input, when its chars are its bytes */
+	private void body(long offset, char[] a, int len) {
+		if (offset < 0 || len < LONG_BODY || !ascii(a, len)) {
+			if (staging.remaining() < len + 16)
+				grow(len);
+			put(a, 0, len);
+			return;
+		}
+		cut();
+		while (len > 0) {
+			int r = (int) (offset / REGION);
+			int at = (int) (offset % REGION);
+			int n = Math.min(len, REGION - at);
+			batch[batched++] = regions[r].slice(at, n);
+			offset += n;
+			len -= n;
+		}
+	}
+
+	/* the staged bytes since the last cut join the batch */
+	private void cut() {
+		if (staging.position() > staged)
+			batch[batched++] = staging.duplicate().position(staged).limit(staging.position());
+		staged = staging.position();
+	}
+
+	/* a long plain token: room in a new staging buffer, the old one is in the batch */
+	private void grow(int len) {
+		cut();
+		staging = ByteBuffer.allocate(Math.max(STAGING, len + 64));
+		staged = 0;
+	}
+
+	private void flush(GatheringByteChannel out) throws IOException {
+		cut();
+		long n = 0;
+		for (int i = 0; i < batched; i++)
+			n += batch[i].remaining();
+		long done = 0;
+		while (done < n)
+			done += out.write(batch, 0, batched);
+		written += n;
+		java.util.Arrays.fill(batch, 0, batched, null);
+		batched = 0;
+		if (staging.capacity() > STAGING)
+			staging = ByteBuffer.allocate(STAGING);
+		staging.clear();
+		staged = 0;
+	}
+
+	/**********************************************/
+	/* NAME:	print_mapped                  */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and an output file            */
+	/* DESCRIPTION: a counting pass sizes the     */
+	/*              output, which is then mapped  */
+	/*              and written in place          */
+	/* OUTPUT:      its size                      */
+	/**********************************************/
+	static long print_mapped(Printtokens t, Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src);
+		     FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Directprinter p = new Directprinter(t, in);
+			long size = p.print(new Mappedoutput(null, 0));
+			Mappedoutput m = new Mappedoutput(out, size);
+			p.print(m);
+			m.close();
+			return size;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print_file                    */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and an output file            */
+	/* OUTPUT:      the bytes written to it with  */
+	/*              gathering writes              */
+	/**********************************************/
+	static long print_file(Printtokens t, Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src);
+		     FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			return new Directprinter(t, in).print(out);
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print_stream                  */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and a PrintStream             */
+	/* DESCRIPTION: same output, for a stream    */
+	/*              that is not a channel         */
+	/**********************************************/
+	static long print_stream(Printtokens t, Path src, PrintStream ps) throws IOException {
+		try (FileChannel in = FileChannel.open(src)) {
+			long n = new Directprinter(t, in).print(new Streamoutput(ps));
+			ps.flush();
+			return n;
+		}
+	}
+
+	/* the output file, mapped a region at a time; with no file it only counts */
+	private static final class Mappedoutput implements GatheringByteChannel {
+		private final FileChannel file;
+		private final long size;
+		private final List<MappedByteBuffer> done = new ArrayList<>();
+		private MappedByteBuffer region;
+		private long mapped = 0;		/* file offset after the current region */
+
+		Mappedoutput(FileChannel file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			int n = src.remaining();
+			if (file == null) {
+				src.position(src.limit());
+				return n;
+			}
+			while (src.hasRemaining()) {
+				if (region == null || !region.hasRemaining()) {
+					if (mapped >= size)
+						throw new IOException("output larger than its counted size");
+					if (region != null)
+						done.add(region);
+					region = file.map(FileChannel.MapMode.READ_WRITE, mapped, Math.min(REGION, size - mapped));
+					mapped += region.capacity();
+				}
+				int k = Math.min(src.remaining(), region.remaining());
+				region.put(region.position(), src, src.position(), k);
+				region.position(region.position() + k);
+				src.position(src.position() + k);
+			}
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++)
+				n += write(srcs[i]);
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+			for (MappedByteBuffer b : done)
+				b.force();
+			if (region != null)
+				region.force();
+		}
+	}
+
+	/* gathering writes onto a PrintStream, for stdout and tests */
+	private static final class Streamoutput implements GatheringByteChannel {
+		private final PrintStream ps;
+		private final byte[] copy = new byte[STAGING];
+
+		Streamoutput(PrintStream ps) {
+			this.ps = ps;
+		}
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			if (src.hasArray()) {
+				ps.write(src.array(), src.arrayOffset() + src.position(), n);
+				src.position(src.limit());
+				return n;
+			}
+			while (src.hasRemaining()) {
+				int k = Math.min(copy.length, src.remaining());
+				src.get(copy, 0, k);
+				ps.write(copy, 0, k);
+			}
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++)
+				n += write(srcs[i]);
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
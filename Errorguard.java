@@ -0,0 +1,171 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*****************************************************/
+/* NAME:        Errorguard                           */
+/* DESCRIPTION: keeps garbage input cheap. with      */
+/*              --binary=skip, input whose first     */
+/*              block looks binary is not tokenized  */
+/*              at all; for the rest,                */
+/*              a run of error tokens prints as one  */
+/*              record, and once the error tokens    */
+/*              pass a budget (a count, or a share   */
+/*              of the characters read) printing     */
+/*              stops: either with an error, or by   */
+/*              reading the rest raw and printing    */
+/*              only a summary                       */
+/*****************************************************/
+final class Errorguard {
+	static final int SNIFF = 8000;		/* bytes looked at, as git does */
+	static final double CONTROL_SHARE = 0.3;	/* of control bytes that makes text binary */
+	static final int RATIO_AFTER = 4096;	/* characters read before the ratio counts */
+
+	private final Printtokens t;
+	private final long max_errors;
+	private final double max_ratio;
+	private final boolean abort;
+	private String first;		/* of the run of errors not printed yet */
+	private long run = 0;
+	private long first_line;
+	private long first_col;
+	private boolean positions;
+
+	long tokens;
+	long errors;
+	long chars;			/* in tokens read */
+	long error_chars;
+	boolean over;			/* the budget ran out */
+
+	Errorguard(Printtokens t, long max_errors, double max_ratio, boolean abort) {
+		this.t = t;
+		this.max_errors = max_errors;
+		this.max_ratio = max_ratio;
+		this.abort = abort;
+	}
+
+	/**********************************************/
+	/* NAME:	of                            */
+	/* INPUT:       N[,RATIO][,abort|summary]:    */
+	/*              at most N error tokens and    */
+	/*              RATIO of the characters in    */
+	/*              error tokens (0 to 1)         */
+	/**********************************************/
+	static Errorguard of(Printtokens t, String spec) {
+		String[] f = spec.split(",");
+		long n = Long.parseLong(f[0]);
+		double ratio = 1;
+		boolean abort = false;
+		for (int i = 1; i < f.length; i++) {
+			if (f[i].equals("abort"))
+				abort = true;
+			else if (!f[i].equals("summary"))
+				ratio = Double.parseDouble(f[i]);
+		}
+		if (n < 0 || ratio < 0 || ratio > 1)
+			throw new IllegalArgumentException("Bad error budget " + spec);
+		return new Errorguard(t, n, ratio, abort);
+	}
+
+	/**********************************************/
+	/* NAME:	looks_binary                  */
+	/* INPUT:       a stream that supports mark   */
+	/* OUTPUT:      true when its first block has */
+	/*              a NUL or is mostly control    */
+	/*              bytes; the stream is reset    */
+	/* DESCRIPTION: one read, so a pipe is judged */
+	/*              by what its writer has sent   */
+	/*              and not waited on for more    */
+	/**********************************************/
+	static boolean looks_binary(InputStream in) throws IOException {
+		byte[] b = new byte[SNIFF];
+		in.mark(SNIFF);
+		int n = Math.max(0, in.read(b, 0, b.length));
+		in.reset();
+		int control = 0;
+		for (int i = 0; i < n; i++) {
+			int c = b[i] & 0xff;
+			if (c == 0)
+				return true;
+			if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != '\f' || c == 0x7f)
+				control++;
+		}
+		return control > n * CONTROL_SHARE;
+	}
+
+	/**********************************************/
+	/* NAME:	print                         */
+	/* INPUT:       a token, and the stream when  */
+	/*              positions are printed         */
+	/* OUTPUT:      false once the budget is gone */
+	/**********************************************/
+	boolean print(String tok, Charstream positions) {
+		this.positions = positions != null;
+		tokens++;
+		chars += tok.length();
+		if (t.type_of(tok) == Printtokens.error) {
+			errors++;
+			error_chars += tok.length();
+			if (run++ == 0) {
+				first = tok;
+				if (positions != null) {
+					first_line = positions.token_line;
+					first_col = positions.token_col;
+				}
+			}
+		} else {
+			end_run();
+			if (positions != null)
+				t.print_token(tok, positions.token_line, positions.token_col);
+			else
+				t.print_token(tok);
+		}
+		if (errors > max_errors || chars >= RATIO_AFTER && error_chars > max_ratio * chars) {
+			end_run();
+			over = true;
+			return false;
+		}
+		return true;
+	}
+
+	/* one error prints as ever; a run as errors,N,"first". */
+	private void end_run() {
+		if (run == 0)
+			return;
+		if (t.shown == null || t.shown[Printtokens.error]) {
+			if (positions)
+				t.out().print(first_line + ":" + first_col + " ");
+			if (run == 1)
+				t.print_token(first);
+			else
+				t.out().print("errors," + run + ",\"" + first + "\".\n");
+		}
+		run = 0;
+		first = null;
+	}
+
+	/**********************************************/
+	/* NAME:	finish                        */
+	/* INPUT:       the stream printed from       */
+	/* DESCRIPTION: prints the last run; past the */
+	/*              budget, the error or the      */
+	/*              summary of what was skipped   */
+	/**********************************************/
+	void finish(Charstream cs) {
+		end_run();
+		if (!over)
+			return;
+		if (abort) {
+			t.out().print("Error! Too many error tokens: " + errors + " of " + tokens + "\n");
+			return;
+		}
+		long skipped;
+		try {
+			skipped = cs.skip_rest();
+		} catch (IOException e) {
+			skipped = -1;
+		}
+		t.out().print("summary,tokens " + tokens + ",errors " + errors + ",skipped " + skipped + ".\n");
+	}
+}
@@ -0,0 +1,203 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/*****************************************************/
+/* NAME:        Follower                             */
+/* DESCRIPTION: tokenizes a file as it grows, like   */
+/*              tail -f. the file stays open and     */
+/*              only whole lines are printed; the    */
+/*              partial last line is held back until */
+/*              its newline comes. it sleeps on a    */
+/*              watch of the file's directory, so an */
+/*              append is printed as soon as the     */
+/*              event arrives, with a timed wakeup   */
+/*              as a fallback. a file that shrinks   */
+/*              was truncated and is read again from */
+/*              the start; when the name comes to    */
+/*              stand for another file (rotation)    */
+/*              the old one is read to its end, its  */
+/*              last line printed, and the new one   */
+/*              followed from its start              */
+/*****************************************************/
+final class Follower implements Closeable {
+	static final long CHECK_MS = 1000;	/* wakeup with no event, for missed ones and rotation */
+	static final int BLOCK = 1 << 16;
+
+	private final Printtokens t;
+	private final Path path;
+	private final WatchService ws;
+	private FileChannel ch;		/* the file followed, or null while the name is gone */
+	private Object key;		/* its identity, to spot a rotation */
+	private long pos;		/* bytes of it read */
+	private byte[] buf = new byte[BLOCK];
+	private int len = 0;		/* read but not printed: the partial last line */
+	private volatile boolean closed;
+
+	final long[] counts = new long[Tokencounts.TYPES.length];
+	long rotations;
+	long truncations;
+	PrintStream log;		/* a line per rotation or truncation, or null */
+
+	/**********************************************/
+	/* NAME:	Follower                      */
+	/* INPUT:       tokenizer settings, the file, */
+	/*              and whether to start after    */
+	/*              its last newline instead of   */
+	/*              at its start                  */
+	/**********************************************/
+	Follower(Printtokens t, Path path, boolean from_end) throws IOException {
+		this.t = t.fork();
+		this.t.out = t.out();
+		this.path = path.toAbsolutePath().normalize();
+		this.ws = this.path.getFileSystem().newWatchService();
+		this.path.getParent().register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		open();
+		if (ch != null && from_end)
+			pos = after_last_newline();
+	}
+
+	private void open() throws IOException {
+		try {
+			ch = FileChannel.open(path);
+			key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			pos = 0;
+			len = 0;
+		} catch (NoSuchFileException e) {
+			ch = null;
+		}
+	}
+
+	/* where the line after the last whole one starts */
+	private long after_last_newline() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(BLOCK);
+		long end = ch.size();
+		while (end > 0) {
+			long from = Math.max(0, end - BLOCK);
+			b.clear().limit((int) (end - from));
+			ch.read(b, from);
+			for (int i = b.position() - 1; i >= 0; i--) {
+				if (b.get(i) == '\n')
+					return from + i + 1;
+			}
+			end = from;
+		}
+		return 0;
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* DESCRIPTION: follows until closed         */
+	/**********************************************/
+	void run() throws IOException {
+		try {
+			while (!closed) {
+				if (pump())
+					continue;
+				WatchKey k;
+				try {
+					k = ws.poll(CHECK_MS, TimeUnit.MILLISECONDS);
+				} catch (ClosedWatchServiceException | InterruptedException e) {
+					return;
+				}
+				if (k != null) {
+					k.pollEvents();	/* any change in the directory is worth a look */
+					k.reset();
+				}
+			}
+		} finally {
+			if (ch != null)
+				ch.close();
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	pump                          */
+	/* OUTPUT:      true when anything was read   */
+	/* DESCRIPTION: prints the whole lines added  */
+	/*              since the last call, after    */
+	/*              checking for a truncation or  */
+	/*              a rotation                    */
+	/**********************************************/
+	boolean pump() throws IOException {
+		if (ch == null) {
+			open();
+			if (ch == null)
+				return false;
+		}
+		if (ch.size() < pos) {
+			truncations++;
+			note("truncated");
+			pos = 0;
+			len = 0;
+		}
+		boolean moved = drain();
+		if (!moved && !same_file()) {
+			rotations++;
+			note("rotated");
+			drain();
+			print(len);	/* nothing more will come to finish it */
+			ch.close();
+			open();
+			moved = true;
+		}
+		t.out().flush();
+		return moved;
+	}
+
+	/* reads to the end of the open file, printing each block's whole lines */
+	private boolean drain() throws IOException {
+		boolean moved = false;
+		while (true) {
+			if (len == buf.length)	/* one line longer than the buffer */
+				buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+			int n = ch.read(ByteBuffer.wrap(buf, len, buf.length - len), pos);
+			if (n <= 0)
+				return moved;
+			moved = true;
+			pos += n;
+			int scanned = len;
+			len += n;
+			int cut = len;
+			while (cut > scanned && buf[cut - 1] != '\n')
+				cut--;
+			if (cut > scanned)
+				print(cut);
+		}
+	}
+
+	private void print(int cut) throws IOException {
+		if (cut == 0)
+			return;
+		Tokencounts.print(t, new ByteArrayInputStream(buf, 0, cut), counts);
+		System.arraycopy(buf, cut, buf, 0, len - cut);
+		len -= cut;
+	}
+
+	private boolean same_file() throws IOException {
+		try {
+			Object now = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			return key == null || key.equals(now);	/* no file keys here: only a deletion shows */
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	private void note(String what) {
+		if (log != null)
+			log.print(what + ",\"" + path + "\".\n");
+	}
+
+	/* stops run, from any thread */
+	public void close() throws IOException {
+		closed = true;
+		ws.close();
+	}
+}
@@ -0,0 +1,319 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/*****************************************************/
+/* NAME:        Grammar                              */
+/* DESCRIPTION: the lexical spec of the language in  */
+/*              table form: one flag byte per        */
+/*              character, the output name of each   */
+/*              special symbol and the keyword set.  */
+/*              the built-in grammar is compiled     */
+/*              from BUILTIN_SPEC by the same parser */
+/*              that reads --grammar files           */
+/*                                                   */
+/*              spec lines (# starts a remark):      */
+/*                symbol  <char> <output name>       */
+/*                keyword <word>                     */
+/*                comment <char>                     */
+/*                string  <char>                     */
+/*                char    <char>                     */
+/*****************************************************/
+public final class Grammar {
+	static final int TABLE = 256;		/* characters above this have no flags */
+
+	static final byte F_SPEC = 1;		/* special symbol */
+	static final byte F_END_TOK = 2;	/* ends a plain token */
+	static final byte F_END_STR = 4;	/* ends a string */
+	static final byte F_END_COM = 8;	/* ends a comment */
+
+	static final String BUILTIN_SPEC =
+		"symbol ( lparen\n" +
+		"symbol ) rparen\n" +
+		"symbol [ lsquare\n" +
+		"symbol ] rsquare\n" +
+		"symbol ' quote\n" +
+		"symbol ` bquote\n" +
+		"symbol , comma\n" +
+		"keyword and\n" +
+		"keyword or\n" +
+		"keyword if\n" +
+		"keyword xor\n" +
+		"keyword lambda\n" +
+		"keyword =>\n" +
+		"comment ;\n" +
+		"string \"\n" +
+		"char #\n";
+
+	public static final Grammar BUILTIN = parse(new StringReader(BUILTIN_SPEC), "built-in grammar");
+
+	final byte[] flags = new byte[TABLE];
+	final String[] spec_names = new String[TABLE];
+	final byte[][] spec_lines = new byte[TABLE][];	/* "name.\n" as bytes, for ASCII names */
+	final Set<String> keywords = new HashSet<>();
+	private char[][] keyword_chars;		/* the keywords, for token_type on a char[] */
+	boolean spec_first;		/* no keyword starts with a symbol */
+	private String keyword_starts = "";	/* first chars of keywords that aren't letters */
+	final char comment_char;
+	final char string_delim;
+	final char char_prefix;
+
+	private Grammar(char comment_char, char string_delim, char char_prefix) {
+		this.comment_char = comment_char;
+		this.string_delim = string_delim;
+		this.char_prefix = char_prefix;
+	}
+
+	/**********************************************/
+	/* NAME:	load                          */
+	/* INPUT:       a spec file                   */
+	/* OUTPUT:      the compiled grammar          */
+	/**********************************************/
+	public static Grammar load(Path spec) throws IOException {
+		try (Reader r = Files.newBufferedReader(spec, StandardCharsets.UTF_8)) {
+			return parse(r, spec.toString());
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	parse                         */
+	/* INPUT:       spec text and a name for      */
+	/*              error messages                */
+	/* OUTPUT:      the compiled grammar          */
+	/**********************************************/
+	public static Grammar parse(Reader spec, String name) {
+		BufferedReader br = new BufferedReader(spec);
+		int comment = -1;
+		int string = -1;
+		int prefix = -1;
+		StringBuilder symbols = new StringBuilder();
+		Set<String> names = new HashSet<>();
+		Set<String> words = new HashSet<>();
+		String[] outputs = new String[TABLE];
+		int n = 0;
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				n++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] f = line.split("\\s+");
+				String where = name + ":" + n + ": ";
+				switch (f[0]) {
+				case "symbol":
+					if (f.length != 3 || !names.add(f[2]))
+						throw new IllegalArgumentException(where + "expected symbol <char> <unique name>");
+					char c = single(f[1], where);
+					if (outputs[c] != null)
+						throw new IllegalArgumentException(where + "symbol " + c + " defined twice");
+					outputs[c] = f[2];
+					symbols.append(c);
+					break;
+				case "keyword":
+					if (f.length != 2)
+						throw new IllegalArgumentException(where + "expected keyword <word>");
+					words.add(f[1]);
+					break;
+				case "comment":
+					comment = one_of(f, where, comment);
+					break;
+				case "string":
+					string = one_of(f, where, string);
+					break;
+				case "char":
+					prefix = one_of(f, where, prefix);
+					break;
+				default:
+					throw new IllegalArgumentException(where + "unknown entry " + f[0]);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (comment < 0 || string < 0 || prefix < 0)
+			throw new IllegalArgumentException(name + ": comment, string and char must all be given");
+		if (comment == string || outputs[comment] != null || outputs[string] != null || outputs[prefix] != null)
+			throw new IllegalArgumentException(name + ": comment, string and char can't be symbols or the same character");
+
+		Grammar g = new Grammar((char) comment, (char) string, (char) prefix);
+		for (int i = 0; i < symbols.length(); i++) {
+			char c = symbols.charAt(i);
+			g.spec_names[c] = outputs[c];
+			String line = outputs[c] + ".\n";
+			if (line.chars().allMatch(ch -> ch < 128))	/* same bytes in any output charset */
+				g.spec_lines[c] = line.getBytes(StandardCharsets.US_ASCII);
+			g.flags[c] |= F_SPEC | F_END_TOK;
+		}
+		g.keywords.addAll(words);
+		g.keyword_chars = new char[words.size()][];
+		int k = 0;
+		g.spec_first = true;
+		for (String w : words) {
+			g.keyword_chars[k++] = w.toCharArray();
+			if (g.is_spec_symbol(w.charAt(0)))
+				g.spec_first = false;
+			if (!Character.isLetter(w.charAt(0)) && g.keyword_starts.indexOf(w.charAt(0)) < 0)
+				g.keyword_starts += w.charAt(0);
+		}
+		g.flags[' '] |= F_END_TOK;
+		g.flags['\n'] |= F_END_TOK | F_END_STR | F_END_COM;
+		g.flags['\r'] |= F_END_TOK | F_END_STR | F_END_COM;
+		g.flags['\t'] |= F_END_STR | F_END_COM;
+		g.flags[comment] |= F_END_TOK;
+		g.flags[string] |= F_END_STR;
+		return g;
+	}
+
+	private static char single(String s, String where) {
+		if (s.length() != 1 || s.charAt(0) >= TABLE || s.charAt(0) <= ' ')
+			throw new IllegalArgumentException(where + "expected one printable character, got " + s);
+		return s.charAt(0);
+	}
+
+	private static int one_of(String[] f, String where, int old) {
+		if (f.length != 2 || old >= 0)
+			throw new IllegalArgumentException(where + "expected one " + f[0] + " <char>");
+		return single(f[1], where);
+	}
+
+	boolean is_spec_symbol(char c) {
+		return c < TABLE && (flags[c] & F_SPEC) != 0;
+	}
+
+	/**********************************************/
+	/* NAME:	is_token_end                  */
+	/* INPUT:       a token status (0 plain,      */
+	/*              1 string, 2 comment) and a    */
+	/*              character or -1 for EOF       */
+	/**********************************************/
+	boolean is_token_end(int str_com_id, int res) {
+		if (res == -1)
+			return true;
+		if (res >= TABLE)
+			return false;
+		int mask = str_com_id == 1 ? F_END_STR : str_com_id == 2 ? F_END_COM : F_END_TOK;
+		return (flags[res] & mask) != 0;
+	}
+
+	boolean is_keyword(String str) {
+		return keywords.contains(str);
+	}
+
+	/* false when a token starting with c can't be a keyword or an identifier */
+	boolean may_be_word(char c) {
+		return Character.isLetter(c) || keyword_starts.indexOf(c) >= 0;
+	}
+
+	boolean is_comment(String str) {
+		return str.charAt(0) == comment_char;
+	}
+
+	boolean is_char_constant(String str) {
+		return str.length() == 2 && str.charAt(0) == char_prefix && Character.isLetter(str.charAt(1));
+	}
+
+	boolean is_str_constant(String str) {
+		if (str.charAt(0) != string_delim)
+			return false;
+		for (int i = 1; i < str.length() && str.charAt(i) != '\0'; i++) {
+			if (str.charAt(i) == string_delim)
+				return true;	/* meet the second delimiter */
+		}
+		return false;
+	}
+
+	/**********************************************/
+	/* NAME:	token_type                    */
+	/* INPUT:       a token                       */
+	/* OUTPUT:      its type code, checked in the */
+	/*              same order as always; symbols */
+	/*              go first when no keyword can  */
+	/*              start with one                */
+	/**********************************************/
+	int token_type(String tok) {
+		if (spec_first && is_spec_symbol(tok.charAt(0))) return Printtokens.spec_symbol;
+		if (is_keyword(tok)) return Printtokens.keyword;
+		if (is_spec_symbol(tok.charAt(0))) return Printtokens.spec_symbol;
+		if (Printtokens.is_identifier(tok)) return Printtokens.identifier;
+		if (Printtokens.is_num_constant(tok)) return Printtokens.num_constant;
+		if (is_str_constant(tok)) return Printtokens.str_constant;
+		if (is_char_constant(tok)) return Printtokens.char_constant;
+		if (is_comment(tok)) return Printtokens.comment;
+		return Printtokens.error;
+	}
+
+	/**********************************************/
+	/* NAME:	token_type                    */
+	/* INPUT:       a token (length > 0) seen     */
+	/*              through a CharSequence view   */
+	/* OUTPUT:      same as token_type(String),   */
+	/*              without making a String       */
+	/**********************************************/
+	int token_type(CharSequence s) {
+		int len = s.length();
+		char c0 = s.charAt(0);
+		if (spec_first && is_spec_symbol(c0))
+			return Printtokens.spec_symbol;
+		for (char[] k : keyword_chars) {
+			if (k.length == len && same(k, s))
+				return Printtokens.keyword;
+		}
+		if (is_spec_symbol(c0))
+			return Printtokens.spec_symbol;
+		if (Character.isLetter(c0))
+			return rest_is(s, len, true) ? Printtokens.identifier : other_type(s, len);
+		if (Character.isDigit(c0))
+			return rest_is(s, len, false) ? Printtokens.num_constant : other_type(s, len);
+		return other_type(s, len);
+	}
+
+	private static boolean same(char[] k, CharSequence s) {
+		for (int i = 0; i < k.length; i++) {
+			if (k[i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/* identifier or number body, up to a '\0' like the String checks */
+	private static boolean rest_is(CharSequence s, int len, boolean letters) {
+		for (int i = 1; i < len && s.charAt(i) != '\0'; i++) {
+			char c = s.charAt(i);
+			if (!Character.isDigit(c) && !(letters && Character.isLetter(c)))
+				return false;
+		}
+		return true;
+	}
+
+	private int other_type(CharSequence s, int len) {
+		char c0 = s.charAt(0);
+		if (c0 == string_delim) {
+			for (int i = 1; i < len && s.charAt(i) != '\0'; i++) {
+				if (s.charAt(i) == string_delim)
+					return Printtokens.str_constant;
+			}
+		}
+		if (len == 2 && c0 == char_prefix && Character.isLetter(s.charAt(1)))
+			return Printtokens.char_constant;
+		if (c0 == comment_char)
+			return Printtokens.comment;
+		return Printtokens.error;
+	}
+
+	/**********************************************/
+	/* NAME:	spec_name                     */
+	/* OUTPUT:      the output name of a one-char */
+	/*              special symbol token, or null */
+	/**********************************************/
+	String spec_name(String str) {
+		if (str.length() != 1 || str.charAt(0) >= TABLE)
+			return null;
+		return spec_names[str.charAt(0)];
+	}
+}
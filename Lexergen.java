@@ -0,0 +1,227 @@
+package main.printtokens;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.*;
+
+/*****************************************************/
+/* NAME:        Lexergen                             */
+/* DESCRIPTION: writes a scanner specialized to one  */
+/*              Grammar, with its symbols, keywords  */
+/*              and delimiters inlined as switch     */
+/*              constants, compiles it in memory     */
+/*              with the JDK compiler and defines it */
+/*              as a hidden class. when no compiler  */
+/*              is available (a bare JRE) compile    */
+/*              returns null and callers keep the    */
+/*              table-driven path; a scanner that    */
+/*              fails to compile is a bug here and   */
+/*              throws instead                       */
+/*****************************************************/
+final class Lexergen {
+	static final String NAME = "Generatedlexer";
+
+	static volatile long sink;		/* keeps bench results live */
+
+	/* the scanner interface a generated class implements */
+	interface Lexer {
+		String get_token(Charstream cs, boolean skip_comments, boolean skip_strings);
+
+		int token_type(String tok);
+	}
+
+	private Lexergen() {
+	}
+
+	/**********************************************/
+	/* NAME:	compile                       */
+	/* INPUT:       a grammar                     */
+	/* OUTPUT:      its specialized scanner, or   */
+	/*              null when code generation is  */
+	/*              not available here            */
+	/* ERRORS:      IllegalStateException when    */
+	/*              the generated source does not */
+	/*              compile                       */
+	/**********************************************/
+	static Lexer compile(Grammar g) {
+		JavaCompiler jc = ToolProvider.getSystemJavaCompiler();
+		if (jc == null)
+			return null;
+		Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+		String source = source(g);
+		JavaFileObject src = new SimpleJavaFileObject(URI.create("string:///main/printtokens/" + NAME + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignore) {
+				return source;
+			}
+		};
+		StandardJavaFileManager std = jc.getStandardFileManager(null, null, null);
+		JavaFileManager fm = new ForwardingJavaFileManager<JavaFileManager>(std) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location loc, String name, JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream b = new ByteArrayOutputStream();
+						classes.put(name, b);
+						return b;
+					}
+				};
+			}
+		};
+		List<String> opts = List.of("-classpath", System.getProperty("java.class.path"), "-proc:none", "-nowarn");
+		StringWriter diagnostics = new StringWriter();
+		if (!jc.getTask(diagnostics, fm, null, opts, null, List.of(src)).call())
+			throw new IllegalStateException("generated scanner does not compile: " + diagnostics.toString().trim());
+		ByteArrayOutputStream bytes = classes.get("main.printtokens." + NAME);
+		if (bytes == null)
+			throw new IllegalStateException("generated scanner has no class " + NAME);
+		try {
+			MethodHandles.Lookup lk = MethodHandles.lookup().defineHiddenClass(bytes.toByteArray(), true);
+			MethodHandle ctor = lk.findConstructor(lk.lookupClass(), MethodType.methodType(void.class));
+			return (Lexer) ctor.invoke();
+		} catch (Throwable e) {
+			return null;		/* no hidden classes: interpret */
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	source                        */
+	/* INPUT:       a grammar                     */
+	/* OUTPUT:      java source of its scanner.   */
+	/*              the control flow is the same  */
+	/*              as Printtokens.get_token and  */
+	/*              Grammar.token_type            */
+	/**********************************************/
+	static String source(Grammar g) {
+		int cmt = g.comment_char;
+		int str = g.string_delim;
+		int pfx = g.char_prefix;
+		StringBuilder spec = new StringBuilder();
+		for (int c = 0; c < Grammar.TABLE; c++) {
+			if (g.is_spec_symbol((char) c))
+				spec.append("case ").append(c).append(": ");
+		}
+		StringBuilder kw = new StringBuilder();
+		for (String k : g.keywords)
+			kw.append("case \"").append(escape(k)).append("\": ");
+		return "package main.printtokens;\n"
+			+ "final class " + NAME + " implements Lexergen.Lexer {\n"
+			+ (spec.length() == 0 ? "  static boolean spec(int c) { return false; }\n"	/* a switch with no case won't compile */
+				: "  static boolean spec(int c) { switch (c) { " + spec + "return true; default: return false; } }\n")
+			+ "  static boolean end_tok(int c) { switch (c) { " + spec + "case -1: case 32: case 10: case 13: case " + cmt + ": return true; default: return false; } }\n"
+			+ "  static boolean end_str(int c) { switch (c) { case -1: case 10: case 13: case 9: case " + str + ": return true; default: return false; } }\n"
+			+ "  static boolean end_com(int c) { switch (c) { case -1: case 10: case 13: case 9: return true; default: return false; } }\n"
+			+ "  public String get_token(Charstream cs, boolean skip_comments, boolean skip_strings) {\n"
+			+ "    StringBuilder sb = new StringBuilder();\n"
+			+ "    try {\n"
+			+ "      int res = cs.get_char();\n"
+			+ "      while (true) {\n"
+			+ "        while (res == 32 || res == 10 || res == 13) res = cs.get_char();\n"
+			+ "        if (res == -1) return null;\n"
+			+ "        if (skip_comments && res == " + cmt + ") { if (cs.skip_comment() == -1) return null; res = cs.get_char(); continue; }\n"
+			+ "        if (skip_strings && res == " + str + " && cs.skip_string((char) " + str + ")) { res = cs.get_char(); continue; }\n"
+			+ "        break;\n"
+			+ "      }\n"
+			+ "      if (cs.tracking()) cs.mark_token();\n"
+			+ "      sb.append((char) res);\n"
+			+ "      if (spec(res)) return sb.toString();\n"
+			+ "      if (res == " + str + ") {\n"
+			+ "        res = cs.get_char();\n"
+			+ "        while (!end_str(res)) { sb.append((char) res); res = cs.get_char(); }\n"
+			+ "        if (res == " + str + ") sb.append((char) res);\n"
+			+ "        return sb.toString();\n"
+			+ "      }\n"
+			+ "      if (res == " + cmt + ") {\n"
+			+ "        res = cs.get_char();\n"
+			+ "        while (!end_com(res)) { sb.append((char) res); res = cs.get_char(); }\n"
+			+ "        return sb.toString();\n"
+			+ "      }\n"
+			+ "      res = cs.get_char();\n"
+			+ "      while (!end_tok(res)) { sb.append((char) res); res = cs.get_char(); }\n"
+			+ "      if (res != -1 && (spec(res) || res == " + cmt + ")) cs.unget_char();\n"
+			+ "    } catch (java.io.IOException e) {\n"
+			+ "      e.printStackTrace();\n"
+			+ "    }\n"
+			+ "    return sb.toString();\n"
+			+ "  }\n"
+			+ "  public int token_type(String tok) {\n"
+			+ (g.spec_first ? "    if (spec(tok.charAt(0))) return Printtokens.spec_symbol;\n" : "")
+			+ (kw.length() == 0 ? "    tok.length();\n"	/* same NPE on null as the switch */
+				: "    switch (tok) { " + kw + "return Printtokens.keyword; default: break; }\n")
+			+ "    char c0 = tok.charAt(0);\n"
+			+ "    if (spec(c0)) return Printtokens.spec_symbol;\n"
+			+ "    if (Printtokens.is_identifier(tok)) return Printtokens.identifier;\n"
+			+ "    if (Printtokens.is_num_constant(tok)) return Printtokens.num_constant;\n"
+			+ "    if (c0 == " + str + ") {\n"
+			+ "      for (int i = 1; i < tok.length() && tok.charAt(i) != 0; i++) if (tok.charAt(i) == " + str + ") return Printtokens.str_constant;\n"
+			+ "    }\n"
+			+ "    if (tok.length() == 2 && c0 == " + pfx + " && Character.isLetter(tok.charAt(1))) return Printtokens.char_constant;\n"
+			+ "    if (c0 == " + cmt + ") return Printtokens.comment;\n"
+			+ "    return Printtokens.error;\n"
+			+ "  }\n"
+			+ "}\n";
+	}
+
+	/* a Java string literal's body. unicode escapes only above ASCII: javac reads them before the literal, so a quote written as one would end it */
+	static String escape(String k) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < k.length(); i++) {
+			char c = k.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c >= 0x20 && c < 0x7f)
+				sb.append(c);
+			else if (c < 0x80)
+				sb.append(String.format("\\%03o", (int) c));
+			else
+				sb.append(String.format("\\u%04x", (int) c));
+		}
+		return sb.toString();
+	}
+
+	/**********************************************/
+	/* NAME:	bench                         */
+	/* INPUT:       tokenizer settings, a file,   */
+	/*              rounds and where to report    */
+	/* DESCRIPTION: scans and classifies the file */
+	/*              in memory with each engine    */
+	/*              and reports MB/s of the best  */
+	/*              round                         */
+	/**********************************************/
+	static void bench(Printtokens t, Path file, int rounds, PrintStream report) throws IOException {
+		byte[] data = Files.readAllBytes(file);
+		Printtokens interpreted = t.fork();
+		interpreted.lexer = null;
+		report.print("interpreted," + mb_per_s(interpreted, data, rounds) + ".\n");
+		Printtokens compiled = t.fork();
+		compiled.lexer = compile(t.grammar);
+		if (compiled.lexer == null)
+			report.print("compiled,unavailable.\n");
+		else
+			report.print("compiled," + mb_per_s(compiled, data, rounds) + ".\n");
+	}
+
+	private static String mb_per_s(Printtokens t, byte[] data, int rounds) throws IOException {
+		long best = Long.MAX_VALUE;
+		long types = 0;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			Charstream cs = new Charstream(new ByteArrayInputStream(data));
+			String tok;
+			while ((tok = t.get_token(cs)) != null)
+				types += t.type_of(tok);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		sink = types;
+		return String.format("%.1f MB/s", data.length / 1e6 / Math.max(best, 1) * 1e9);
+	}
+}
@@ -0,0 +1,182 @@
+package main.printtokens;
+
+import java.util.Arrays;
+
+/*****************************************************/
+/* NAME:        Linecache                            */
+/* DESCRIPTION: the encoded output lines of tokens   */
+/*              seen before, so a repeated token is  */
+/*              printed with one lookup and one bulk */
+/*              write instead of being classified    */
+/*              and encoded again. bounded by a byte */
+/*              cap over the tokens, the lines and   */
+/*              the table; when full, CLOCK evicts:  */
+/*              the hand passes over entries used    */
+/*              since its last visit, clearing their */
+/*              bit, and evicts the first one that   */
+/*              wasn't. not thread safe              */
+/*****************************************************/
+final class Linecache {
+	static final long DEFAULT_CAP = 4L << 20;
+	static final int ENTRY_BYTES = 64;	/* a token and line of the usual size, for sizing the table */
+	static final int OVERHEAD = 48;		/* object headers of a key and a line */
+	static final int SLOT_BYTES = 4 + 4 + 4 + 1 + 8 + 8;	/* head, next, hash, bit and two references */
+
+	private final long cap;
+	private final int[] heads;	/* entry chains by hash, -1 ends them */
+	private final int[] next;
+	private final int[] hashes;
+	private final String[] keys;
+	private final byte[][] entries;
+	private final boolean[] used;	/* the CLOCK bit */
+	private int count = 0;		/* slots handed out; freed ones are reused */
+	private int free = -1;		/* chain of freed slots, through next */
+	private int hand = 0;
+	private int size = 0;
+	private long bytes;
+
+	long hits;
+	long misses;
+	long evictions;
+
+	/**********************************************/
+	/* NAME:	Linecache                     */
+	/* INPUT:       the most bytes it may hold    */
+	/**********************************************/
+	Linecache(long cap) {
+		int n = (int) Math.min(1 << 24, Math.max(16, cap / (ENTRY_BYTES + SLOT_BYTES)));
+		this.cap = cap;
+		this.heads = new int[Integer.highestOneBit(n - 1) << 1];
+		this.next = new int[n];
+		this.hashes = new int[n];
+		this.keys = new String[n];
+		this.entries = new byte[n][];
+		this.used = new boolean[n];
+		Arrays.fill(heads, -1);
+		this.bytes = fixed();
+	}
+
+	long cap() {
+		return cap;
+	}
+
+	long bytes() {
+		return bytes;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**********************************************/
+	/* NAME:	get                           */
+	/* OUTPUT:      the line cached for tok, or   */
+	/*              null                          */
+	/**********************************************/
+	byte[] get(String tok) {
+		int h = spread(tok.hashCode());
+		for (int i = heads[h & (heads.length - 1)]; i >= 0; i = next[i]) {
+			if (hashes[i] == h && keys[i].equals(tok)) {
+				used[i] = true;
+				hits++;
+				return entries[i];
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**********************************************/
+	/* NAME:	put                           */
+	/* INPUT:       a token missed by get and the */
+	/*              first len bytes of line, its  */
+	/*              output                        */
+	/**********************************************/
+	void put(String tok, byte[] line, int len) {
+		long cost = cost(tok, len);
+		if (cost > (cap - fixed()) / 8)
+			return;			/* one this big would flush the cache */
+		while (bytes + cost > cap || free < 0 && count == keys.length)
+			evict();
+		int i;
+		if (free >= 0) {
+			i = free;
+			free = next[i];
+		} else {
+			i = count++;
+		}
+		int h = spread(tok.hashCode());
+		int b = h & (heads.length - 1);
+		keys[i] = tok;
+		entries[i] = Arrays.copyOf(line, len);
+		hashes[i] = h;
+		used[i] = false;
+		next[i] = heads[b];
+		heads[b] = i;
+		bytes += cost;
+		size++;
+	}
+
+	private long fixed() {
+		return (long) heads.length * 4 + (long) keys.length * SLOT_BYTES;
+	}
+
+	private static long cost(String tok, int len) {
+		return 2L * tok.length() + len + OVERHEAD;
+	}
+
+	/* the hand moves on to the first entry not used since it last came by */
+	private void evict() {
+		while (true) {
+			int i = hand;
+			hand = hand + 1 == count ? 0 : hand + 1;
+			if (keys[i] == null)
+				continue;
+			if (used[i]) {
+				used[i] = false;
+				continue;
+			}
+			unlink(i);
+			bytes -= cost(keys[i], entries[i].length);
+			keys[i] = null;
+			entries[i] = null;
+			next[i] = free;
+			free = i;
+			size--;
+			evictions++;
+			return;
+		}
+	}
+
+	private void unlink(int i) {
+		int b = hashes[i] & (heads.length - 1);
+		if (heads[b] == i) {
+			heads[b] = next[i];
+			return;
+		}
+		int p = heads[b];
+		while (next[p] != i)
+			p = next[p];
+		next[p] = next[i];
+	}
+
+	/* drops every entry, keeping the counters */
+	void clear() {
+		Arrays.fill(heads, -1);
+		Arrays.fill(keys, null);
+		Arrays.fill(entries, null);
+		count = 0;
+		free = -1;
+		hand = 0;
+		size = 0;
+		bytes = fixed();
+	}
+
+	public String toString() {
+		return "cache,hits " + hits + ",misses " + misses + ",evictions " + evictions + ",bytes " + bytes + ".\n";
+	}
+}
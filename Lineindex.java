@@ -0,0 +1,108 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*****************************************************/
+/* NAME:        Lineindex                            */
+/* DESCRIPTION: sparse line-start index. keeps one   */
+/*              long (the start offset) for every    */
+/*              N-th line, filled while scanning, so */
+/*              any offset can later be turned into  */
+/*              line:column by reading at most N     */
+/*              lines of the source                  */
+/*****************************************************/
+final class Lineindex {
+	static final int DEFAULT_EVERY = 64;
+
+	final int every;
+	private long[] starts = new long[16];	/* starts[k] = offset of line k*every+1 */
+	private int count = 1;			/* starts[0] = 0, line 1 */
+	private long lines = 1;
+
+	Lineindex() {
+		this(DEFAULT_EVERY);
+	}
+
+	Lineindex(int every) {
+		if (every <= 0)
+			throw new IllegalArgumentException("every must be positive: " + every);
+		this.every = every;
+	}
+
+	/**********************************************/
+	/* NAME:	add_line                      */
+	/* INPUT:       1-based line number and the   */
+	/*              offset where that line starts */
+	/**********************************************/
+	void add_line(long line, long start) {
+		lines = line;
+		if ((line - 1) % every != 0)
+			return;
+		if (count == starts.length)
+			starts = Arrays.copyOf(starts, count * 2);
+		starts[count++] = start;
+	}
+
+	long lines() {
+		return lines;
+	}
+
+	int checkpoints() {
+		return count;
+	}
+
+	/**********************************************/
+	/* NAME:	checkpoint                    */
+	/* INPUT:       an offset                     */
+	/* OUTPUT:      index k of the last checkpoint */
+	/*              at or before the offset; line */
+	/*              k*every+1 starts at start(k)  */
+	/**********************************************/
+	int checkpoint(long offset) {
+		int k = Arrays.binarySearch(starts, 0, count, offset);
+		return k >= 0 ? k : -k - 2;
+	}
+
+	long start(int k) {
+		return starts[k];
+	}
+
+	/**********************************************/
+	/* NAME:	locate                        */
+	/* INPUT:       a byte offset and the file it */
+	/*              was scanned from              */
+	/* OUTPUT:      {line, column}, both 1-based; */
+	/*              the column counts chars, as   */
+	/*              Charstream's do               */
+	/**********************************************/
+	long[] locate(long offset, FileChannel ch) throws IOException {
+		int k = checkpoint(offset);
+		long line = (long) k * every + 1;
+		long pos = starts[k];
+		long line_start = pos;
+		ByteBuffer bb = ByteBuffer.allocate(8192);
+		while (pos < offset) {
+			bb.clear();
+			bb.limit((int) Math.min(bb.capacity(), offset - pos));
+			int n = ch.read(bb, pos);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (bb.get(i) == '\n') {
+					line++;
+					line_start = pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+		ByteBuffer head = ByteBuffer.allocate((int) (offset - line_start));
+		while (head.hasRemaining() && ch.read(head, line_start + head.position()) > 0)
+			;
+		head.flip();
+		return new long[] { line, Charset.defaultCharset().decode(head).length() + 1 };
+	}
+}
@@ -0,0 +1,210 @@
+package main.printtokens;
+
+import java.io.*;
+
+/*****************************************************/
+/* NAME:        Liveprinter                          */
+/* DESCRIPTION: prints tokens from an interactive    */
+/*              producer as soon as each one is      */
+/*              terminated. output collects in a     */
+/*              buffer of its own and goes out under */
+/*              a flush policy: every token, every   */
+/*              input line, batches at most MS old,  */
+/*              or full blocks. all but blocks also  */
+/*              flush before the input would block,  */
+/*              so nothing printed waits on the next */
+/*              keystroke. the latency of each token */
+/*              runs from the read that brought its  */
+/*              terminating byte to the write that   */
+/*              took its line out                    */
+/*****************************************************/
+final class Liveprinter {
+	static final int TOKEN = 0;
+	static final int LINE = 1;
+	static final int BATCH = 2;
+	static final int BLOCK = 3;
+	static final String[] POLICIES = {"token", "line", "batch", "block"};
+	static final int BLOCK_SIZE = 1 << 16;
+	static final long DEFAULT_BATCH_MS = 5;
+
+	private final Printtokens t;
+	private final int policy;
+	private final long batch_ns;
+	private final OutputStream sink;
+	private final ByteArrayOutputStream buf = new ByteArrayOutputStream(BLOCK_SIZE);
+	private long[] arrivals = new long[64];	/* of the tokens in buf */
+	private int waiting = 0;
+
+	final Histogram latency = new Histogram();	/* nanoseconds per token */
+	long flushes;
+
+	Liveprinter(Printtokens t, int policy, long batch_ms, OutputStream sink) {
+		this.t = t.fork();
+		this.policy = policy;
+		this.batch_ns = batch_ms * 1000000;
+		this.sink = sink;
+		this.t.out = new PrintStream(buf);
+	}
+
+	/**********************************************/
+	/* NAME:	of                            */
+	/* INPUT:       token, line, batch[:MS] or    */
+	/*              block (null for token)        */
+	/**********************************************/
+	static Liveprinter of(Printtokens t, String spec, OutputStream sink) {
+		String name = spec == null ? "token" : spec;
+		long ms = DEFAULT_BATCH_MS;
+		int colon = name.indexOf(':');
+		if (colon >= 0) {
+			ms = Long.parseLong(name.substring(colon + 1));
+			name = name.substring(0, colon);
+		}
+		for (int p = 0; p < POLICIES.length; p++) {
+			if (POLICIES[p].equals(name))
+				return new Liveprinter(t, p, ms, sink);
+		}
+		throw new IllegalArgumentException("Unknown flush policy " + spec);
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* INPUT:       the producer's output         */
+	/* DESCRIPTION: prints until its end          */
+	/**********************************************/
+	void run(InputStream in) throws IOException {
+		Arrivals a = new Arrivals(in);
+		Charstream cs = new Charstream(new InputStreamReader(a));
+		try {
+			String tok;
+			while ((tok = t.get_token(cs)) != null) {
+				int before = buf.size();
+				t.print_token(tok);
+				if (buf.size() == before)
+					continue;		/* filtered out */
+				if (waiting == arrivals.length)
+					arrivals = java.util.Arrays.copyOf(arrivals, waiting * 2);
+				arrivals[waiting++] = a.at;
+				if (due(cs))
+					flush();
+			}
+		} finally {
+			cs.release();
+		}
+		flush();
+	}
+
+	private boolean due(Charstream cs) {
+		switch (policy) {
+		case TOKEN:
+			return true;
+		case LINE:
+			return cs.last_char() == '\n' || cs.last_char() == '\r';
+		case BATCH:
+			return System.nanoTime() - arrivals[0] >= batch_ns;
+		default:
+			return buf.size() >= BLOCK_SIZE;
+		}
+	}
+
+	private void flush() throws IOException {
+		if (buf.size() == 0)
+			return;
+		buf.writeTo(sink);
+		sink.flush();
+		buf.reset();
+		long now = System.nanoTime();
+		for (int i = 0; i < waiting; i++)
+			latency.record(now - arrivals[i]);
+		waiting = 0;
+		flushes++;
+	}
+
+	/* the input, noting when each read returned; flushes first when one would block */
+	private final class Arrivals extends FilterInputStream {
+		long at = System.nanoTime();
+
+		Arrivals(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			idle();
+			int b = in.read();
+			at = System.nanoTime();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			idle();
+			int n = in.read(b, off, len);
+			at = System.nanoTime();
+			return n;
+		}
+
+		private void idle() throws IOException {
+			if (policy != BLOCK && in.available() == 0)
+				flush();
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	Histogram                     */
+	/* DESCRIPTION: counts by value in buckets    */
+	/*              16 to a power of two, so a    */
+	/*              percentile is within 1/16 of  */
+	/*              the value it names            */
+	/**********************************************/
+	static final class Histogram {
+		static final int SUB = 16;
+		private final long[] counts = new long[64 * SUB];
+		long total;
+		long max;
+
+		void record(long v) {
+			if (v < 0)
+				v = 0;
+			counts[index(v)]++;
+			total++;
+			max = Math.max(max, v);
+		}
+
+		static int index(long v) {
+			if (v < SUB)
+				return (int) v;
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			return (e - 3) * SUB + (int) ((v >>> (e - 4)) & (SUB - 1));
+		}
+
+		/* the smallest value counted in bucket i */
+		static long lowest(int i) {
+			if (i < SUB)
+				return i;
+			return (long) (SUB + i % SUB) << (i / SUB - 1);
+		}
+
+		/* the largest value of the bucket holding the q-th quantile, 0 when empty */
+		long percentile(double q) {
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(max, lowest(i + 1) - 1);
+			}
+			return 0;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	report                        */
+	/* DESCRIPTION: the flush count, then the     */
+	/*   latency percentiles in microseconds      */
+	/**********************************************/
+	void report(PrintStream out) {
+		out.print("flushes," + flushes + ",tokens " + latency.total + ".\n");
+		out.print("latency," + String.format("p50 %.1f us,p99 %.1f us,p999 %.1f us,max %.1f us",
+			latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3, latency.max / 1e3) + ".\n");
+	}
+}
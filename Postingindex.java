@@ -0,0 +1,504 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*****************************************************/
+/* NAME:        Postingindex                         */
+/* DESCRIPTION: on-disk inverted index of a corpus:  */
+/*              every identifier and keyword and the */
+/*              (file, offset) of each occurrence.   */
+/*              workers index contiguous batches of  */
+/*              files into sorted segment files,     */
+/*              which are merged FAN_IN at a time.   */
+/*              a posting list is varints: the file  */
+/*              delta (0 for the same file) and the  */
+/*              offset, itself a delta within a      */
+/*              file. lookups map the index and      */
+/*              binary search its sorted word table  */
+/*                                                   */
+/*              layout: header, file table (name     */
+/*              pos, len), word table (word pos,     */
+/*              len, postings pos, len, count), file */
+/*              names, words, postings               */
+/*****************************************************/
+final class Postingindex implements Closeable {
+	static final int MAGIC = 0x50545049;	/* "PTPI" */
+	static final int VERSION = 1;
+	static final int HEADER = 56;
+	static final int FILE_ENTRY = 12;
+	static final int WORD_ENTRY = 28;
+	static final int SEGMENT_FILES = 256;	/* files per build segment */
+	static final int FAN_IN = 64;		/* segments per merge */
+
+	/* lookup callback */
+	interface Visitor {
+		void posting(int file, long offset);
+	}
+
+	private final FileChannel ch;
+	private final int nfiles;
+	private final int nwords;
+	private final long postings_pos;
+	private final ByteBuffer file_table;
+	private final ByteBuffer names;
+	private final ByteBuffer word_table;
+	private final ByteBuffer words;
+
+	private Postingindex(FileChannel ch) throws IOException {
+		this.ch = ch;
+		ByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+		if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION)
+			throw new IOException("not a posting index");
+		nfiles = h.getInt(8);
+		nwords = h.getInt(12);
+		long file_pos = h.getLong(16);
+		long word_pos = h.getLong(24);
+		long names_pos = h.getLong(32);
+		long words_pos = h.getLong(40);
+		postings_pos = h.getLong(48);
+		file_table = section(file_pos, (long) nfiles * FILE_ENTRY);
+		word_table = section(word_pos, (long) nwords * WORD_ENTRY);
+		names = section(names_pos, words_pos - names_pos);
+		words = section(words_pos, postings_pos - words_pos);
+	}
+
+	private ByteBuffer section(long pos, long len) throws IOException {
+		if (len > Integer.MAX_VALUE)
+			throw new IOException("index section too large to map");
+		return ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+	}
+
+	/**********************************************/
+	/* NAME:	open                          */
+	/* INPUT:       an index file                 */
+	/* OUTPUT:      the index, mapped for lookups */
+	/**********************************************/
+	static Postingindex open(Path file) throws IOException {
+		FileChannel ch = FileChannel.open(file);
+		try {
+			return new Postingindex(ch);
+		} catch (IOException | RuntimeException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	int files() {
+		return nfiles;
+	}
+
+	int words() {
+		return nwords;
+	}
+
+	String file_name(int file) {
+		int at = file * FILE_ENTRY;
+		return utf8(names, (int) file_table.getLong(at), file_table.getInt(at + 8));
+	}
+
+	private static String utf8(ByteBuffer b, int pos, int len) {
+		byte[] a = new byte[len];
+		b.get(pos, a);
+		return new String(a, StandardCharsets.UTF_8);
+	}
+
+	/**********************************************/
+	/* NAME:	lookup                        */
+	/* INPUT:       a word and a visitor          */
+	/* OUTPUT:      its number of occurrences;    */
+	/*              the visitor gets each one in  */
+	/*              (file, offset) order          */
+	/**********************************************/
+	long lookup(String word, Visitor v) throws IOException {
+		byte[] key = word.getBytes(StandardCharsets.UTF_8);
+		int lo = 0;
+		int hi = nwords - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int at = mid * WORD_ENTRY;
+			int c = compare(key, (int) word_table.getLong(at), word_table.getInt(at + 8));
+			if (c > 0) {
+				lo = mid + 1;
+			} else if (c < 0) {
+				hi = mid - 1;
+			} else {
+				long pos = word_table.getLong(at + 12);
+				int len = word_table.getInt(at + 20);
+				decode(ch.map(FileChannel.MapMode.READ_ONLY, postings_pos + pos, len), v);
+				return word_table.getInt(at + 24);
+			}
+		}
+		return 0;
+	}
+
+	private int compare(byte[] key, int pos, int len) {
+		int n = Math.min(key.length, len);
+		for (int i = 0; i < n; i++) {
+			int c = (key[i] & 0xff) - (words.get(pos + i) & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return key.length - len;
+	}
+
+	private static void decode(ByteBuffer b, Visitor v) {
+		int file = -1;
+		long offset = 0;
+		while (b.hasRemaining()) {
+			long fd = read_varint(b);
+			if (fd > 0) {
+				file += (int) fd;
+				offset = read_varint(b);
+			} else {
+				offset += read_varint(b);
+			}
+			v.posting(file, offset);
+		}
+	}
+
+	public void close() throws IOException {
+		ch.close();
+	}
+
+	static long read_varint(ByteBuffer b) {
+		long x = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte c = b.get();
+			x |= (long) (c & 0x7f) << shift;
+			if (c >= 0)
+				return x;
+		}
+	}
+
+	static long read_varint(DataInput in) throws IOException {
+		long x = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte c = in.readByte();
+			x |= (long) (c & 0x7f) << shift;
+			if (c >= 0)
+				return x;
+		}
+	}
+
+	static void write_varint(DataOutput out, long x) throws IOException {
+		while ((x & ~0x7fL) != 0) {
+			out.writeByte((int) (x & 0x7f) | 0x80);
+			x >>>= 7;
+		}
+		out.writeByte((int) x);
+	}
+
+	/* one word's postings while a segment is built */
+	private static final class Postings {
+		byte[] data = new byte[8];
+		int len = 0;
+		int count = 0;
+		int last_file = -1;
+		long last_offset = 0;
+
+		void add(int file, long offset) {
+			if (len + 20 > data.length)	/* two varints at most */
+				data = Arrays.copyOf(data, Math.max(data.length * 2, len + 20));
+			if (file != last_file) {
+				put(file - last_file);
+				put(offset);
+			} else {
+				put(0);
+				put(offset - last_offset);
+			}
+			last_file = file;
+			last_offset = offset;
+			count++;
+		}
+
+		private void put(long x) {
+			while ((x & ~0x7fL) != 0) {
+				data[len++] = (byte) ((x & 0x7f) | 0x80);
+				x >>>= 7;
+			}
+			data[len++] = (byte) x;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	segment                       */
+	/* INPUT:       tokenizer settings, the files */
+	/*              [from, to) of the corpus and  */
+	/*              the segment file to write     */
+	/* DESCRIPTION: segment entries, sorted by    */
+	/*              the UTF-8 bytes of the word:  */
+	/*              word, count, last file and    */
+	/*              postings; the first posting   */
+	/*              is relative to file -1        */
+	/**********************************************/
+	static void segment(Printtokens t, List<Path> files, int from, int to, Path seg) throws IOException {
+		Tokentable.Dictionary dict = new Tokentable.Dictionary();
+		List<Postings> lists = new ArrayList<>();
+		for (int f = from; f < to; f++) {
+			try (Charstream cs = new Charstream(FileChannel.open(files.get(f)))) {
+				Tokencursor cur = new Tokencursor(t, cs);
+				while (cur.next()) {
+					if (cur.type != Printtokens.identifier && cur.type != Printtokens.keyword)
+						continue;
+					int id = dict.id_of(cur.text, cur.length);
+					if (id == lists.size())
+						lists.add(new Postings());
+					lists.get(id).add(f, cur.offset);
+				}
+			}
+		}
+		byte[][] keys = new byte[dict.size()][];
+		Integer[] order = new Integer[keys.length];
+		for (int id = 0; id < keys.length; id++) {
+			keys[id] = dict.word(id).getBytes(StandardCharsets.UTF_8);
+			order[id] = id;
+		}
+		Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(seg), 1 << 16))) {
+			out.writeInt(keys.length);
+			for (int id : order) {
+				Postings p = lists.get(id);
+				write_varint(out, keys[id].length);
+				out.write(keys[id]);
+				write_varint(out, p.count);
+				write_varint(out, p.last_file + 1);
+				write_varint(out, p.len);
+				out.write(p.data, 0, p.len);
+			}
+		}
+	}
+
+	/* sequential reader of a segment file */
+	private static final class Segreader implements Closeable {
+		final int rank;			/* position of the segment in corpus order */
+		private final DataInputStream in;
+		private int left;
+		byte[] word;
+		long count;
+		int last_file;
+		byte[] data;
+
+		Segreader(Path seg, int rank) throws IOException {
+			this.rank = rank;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(seg), 1 << 16));
+			this.left = in.readInt();
+		}
+
+		boolean advance() throws IOException {
+			if (left == 0)
+				return false;
+			left--;
+			word = new byte[(int) read_varint(in)];
+			in.readFully(word);
+			count = read_varint(in);
+			last_file = (int) read_varint(in) - 1;
+			data = new byte[(int) read_varint(in)];
+			in.readFully(data);
+			return true;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	merge                         */
+	/* INPUT:       segments in corpus order and  */
+	/*              the segment to write          */
+	/* DESCRIPTION: k-way merge by word. lists of */
+	/*              one word are joined in corpus */
+	/*              order; only the first posting */
+	/*              of each later list is         */
+	/*              re-encoded, the rest is       */
+	/*              copied as it is               */
+	/**********************************************/
+	static void merge(List<Path> segs, Path out_seg) throws IOException {
+		List<Segreader> readers = new ArrayList<>();
+		PriorityQueue<Segreader> heap = new PriorityQueue<>((a, b) -> {
+			int c = Arrays.compareUnsigned(a.word, b.word);
+			return c != 0 ? c : Integer.compare(a.rank, b.rank);
+		});
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(out_seg), 1 << 16))) {
+			for (int i = 0; i < segs.size(); i++) {
+				Segreader r = new Segreader(segs.get(i), i);
+				readers.add(r);
+				if (r.advance())
+					heap.add(r);
+			}
+			int nwords = 0;
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream list = new DataOutputStream(body);
+			Path tmp = Files.createTempFile(out_seg.getParent(), "merge", ".seg");
+			try {
+				try (DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+					while (!heap.isEmpty()) {
+						Segreader first = heap.poll();
+						byte[] word = first.word;
+						body.reset();
+						long count = first.count;
+						int last_file = first.last_file;
+						list.write(first.data);
+						if (first.advance())
+							heap.add(first);
+						while (!heap.isEmpty() && Arrays.equals(heap.peek().word, word)) {
+							Segreader r = heap.poll();
+							ByteBuffer b = ByteBuffer.wrap(r.data);
+							int file = (int) read_varint(b) - 1;	/* relative to -1 */
+							write_varint(list, file - last_file);
+							list.write(r.data, b.position(), r.data.length - b.position());
+							count += r.count;
+							last_file = r.last_file;
+							if (r.advance())
+								heap.add(r);
+						}
+						write_varint(entries, word.length);
+						entries.write(word);
+						write_varint(entries, count);
+						write_varint(entries, last_file + 1);
+						write_varint(entries, body.size());
+						body.writeTo(entries);
+						nwords++;
+					}
+				}
+				out.writeInt(nwords);
+				Files.copy(tmp, out);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} finally {
+			for (Segreader r : readers)
+				r.close();
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	build                         */
+	/* INPUT:       tokenizer settings, a file or */
+	/*              directory and the index file  */
+	/* OUTPUT:      the number of words indexed   */
+	/**********************************************/
+	static int build(Printtokens t, Path root, Path index) throws IOException {
+		List<Path> files = Tokentable.inputs(root);
+		Path dir = Files.createTempDirectory(index.toAbsolutePath().getParent(), "segments");
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, t.threads));
+		try {
+			List<Future<Path>> parts = new ArrayList<>();
+			for (int from = 0; from < files.size() || parts.isEmpty(); from += SEGMENT_FILES) {
+				int lo = from;
+				int hi = Math.min(files.size(), from + SEGMENT_FILES);
+				Path seg = dir.resolve("seg" + parts.size());
+				parts.add(pool.submit(() -> {
+					segment(t.fork(), files, lo, hi, seg);
+					return seg;
+				}));
+			}
+			List<Path> segs = new ArrayList<>();
+			for (Future<Path> f : parts)
+				segs.add(f.get());
+			int round = 0;
+			while (segs.size() > 1) {	/* merge FAN_IN consecutive segments at a time, in parallel */
+				List<Future<Path>> merged = new ArrayList<>();
+				for (int i = 0; i < segs.size(); i += FAN_IN) {
+					List<Path> group = segs.subList(i, Math.min(segs.size(), i + FAN_IN));
+					Path seg = dir.resolve("merge" + round + "-" + merged.size());
+					merged.add(pool.submit(() -> {
+						merge(group, seg);
+						return seg;
+					}));
+				}
+				List<Path> next = new ArrayList<>();
+				for (Future<Path> f : merged)
+					next.add(f.get());
+				for (Path p : segs)
+					Files.deleteIfExists(p);
+				segs = next;
+				round++;
+			}
+			return write(files, root, segs.get(0), index);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			try (java.util.stream.Stream<Path> s = Files.list(dir)) {
+				for (Path p : (Iterable<Path>) s::iterator)
+					Files.deleteIfExists(p);
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/* the final segment laid out as an index file, written beside it and moved in place */
+	private static int write(List<Path> files, Path root, Path seg, Path index) throws IOException {
+		boolean dir = Files.isDirectory(root);
+		ByteArrayOutputStream file_table = new ByteArrayOutputStream();
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		DataOutputStream ft = new DataOutputStream(file_table);
+		for (Path f : files) {
+			byte[] name = (dir ? root.relativize(f) : f).toString().getBytes(StandardCharsets.UTF_8);
+			ft.writeLong(names.size());
+			ft.writeInt(name.length);
+			names.write(name);
+		}
+		ByteArrayOutputStream word_table = new ByteArrayOutputStream();
+		ByteArrayOutputStream words = new ByteArrayOutputStream();
+		DataOutputStream wt = new DataOutputStream(word_table);
+		Path postings = Files.createTempFile(index.toAbsolutePath().getParent(), "postings", ".tmp");
+		Path tmp = Files.createTempFile(index.toAbsolutePath().getParent(), "index", ".tmp");
+		int nwords = 0;
+		try {
+			try (Segreader r = new Segreader(seg, 0);
+			     OutputStream p = new BufferedOutputStream(Files.newOutputStream(postings), 1 << 16)) {
+				long pos = 0;
+				while (r.advance()) {
+					wt.writeLong(words.size());
+					wt.writeInt(r.word.length);
+					wt.writeLong(pos);
+					wt.writeInt(r.data.length);
+					wt.writeInt((int) Math.min(r.count, Integer.MAX_VALUE));
+					words.write(r.word);
+					p.write(r.data);
+					pos += r.data.length;
+					nwords++;
+				}
+			}
+			long file_pos = HEADER;
+			long word_pos = file_pos + file_table.size();
+			long names_pos = word_pos + word_table.size();
+			long words_pos = names_pos + names.size();
+			long postings_pos = words_pos + words.size();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(files.size());
+				out.writeInt(nwords);
+				out.writeLong(file_pos);
+				out.writeLong(word_pos);
+				out.writeLong(names_pos);
+				out.writeLong(words_pos);
+				out.writeLong(postings_pos);
+				file_table.writeTo(out);
+				word_table.writeTo(out);
+				names.writeTo(out);
+				words.writeTo(out);
+				Files.copy(postings, out);
+			}
+			Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(postings);
+			Files.deleteIfExists(tmp);
+		}
+		return nwords;
+	}
+}
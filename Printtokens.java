@@ -3,14 +3,66 @@ package main.printtokens;
 import java.io.*;
 
 public class Printtokens{
-	static int error = 0;
-	static int keyword = 1;
-	static int spec_symbol = 2;
-	static int identifier = 3;
-	static int num_constant = 41;
-	static int str_constant = 42;
-	static int char_constant = 43;
-	static int comment = 5;
+	static final int error = 0;
+	static final int keyword = 1;
+	static final int spec_symbol = 2;
+	static final int identifier = 3;
+	static final int num_constant = 41;
+	static final int str_constant = 42;
+	static final int char_constant = 43;
+	static final int comment = 5;
+
+	private Charstream stream;	/* lookahead buffer of the last reader passed to get_token */
+	PrintStream out;		/* where print_token writes; null means System.out */
+	int threads = Runtime.getRuntime().availableProcessors();	/* workers of the parallel modes */
+	java.util.List<String> flags = new java.util.ArrayList<>();	/* the settings flags main was given */
+
+	Grammar grammar = Grammar.BUILTIN;	/* symbols, keywords and delimiters */
+	Lexergen.Lexer lexer;		/* scanner compiled for grammar, or null */
+	boolean[] shown;		/* by type code; null shows every type */
+	boolean skip_comments;		/* get_token drops comments unread */
+	boolean skip_strings;		/* get_token drops closed strings unread */
+	private byte[] line = new byte[128];	/* the output line print_quoted encodes */
+	Linecache cache;		/* lines of keywords and identifiers printed before, or null */
+
+	static final byte[] KEYWORD_PREFIX = ascii("keyword,\"");
+	static final byte[] IDENTIFIER_PREFIX = ascii("identifier,\"");
+	static final byte[] QUOTE_END = ascii("\".\n");
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+	}
+
+	PrintStream out() {
+		return out != null ? out : System.out;
+	}
+
+	/****************************************************/
+	/* NAME:	fork                                    */
+	/* OUTPUT:	a tokenizer with the same grammar and   */
+	/*              filter, for use on another thread   */
+	/****************************************************/
+	Printtokens fork() {
+		Printtokens t = new Printtokens();
+		t.grammar = grammar;
+		t.lexer = lexer;
+		t.shown = shown;
+		t.skip_comments = skip_comments;
+		t.skip_strings = skip_strings;
+		t.threads = threads;
+		if (cache != null)
+			t.cache = new Linecache(cache.cap());	/* its own, as it isn't thread safe */
+		return t;
+	}
+
+	/* same as fork, without the filter */
+	Printtokens unfiltered() {
+		Printtokens t = fork();
+		t.shown = null;
+		t.skip_comments = false;
+		t.skip_strings = false;
+		return t;
+	}
 	
 	/***********************************************/
 	/* NMAE:	open_character_stream          */
@@ -18,23 +70,35 @@ public class Printtokens{
 	/* OUTPUT:      a BufferedReader */
 	/* DESCRIPTION: when not given a filename,     */
 	/*              open stdin,otherwise open      */
-	/*              the existed file               */
+	/*              the existed file; a .gz file   */
+	/*              is decompressed on the fly     */
 	/***********************************************/
 	BufferedReader open_character_stream(String fname) {
-		BufferedReader br = null;
-		if (fname == null) { 
-			br = new BufferedReader(new InputStreamReader(System.in));
-		} else {
-			try {
-				FileReader fr = new FileReader(fname);
-				br = new BufferedReader(fr);
-			} catch (FileNotFoundException e) {
-				System.out.print("The file " + fname +" doesn't exists\n");
-				e.printStackTrace();
-			}
+		InputStream in = open_byte_stream(fname);
+		return in == null ? null : new BufferedReader(new InputStreamReader(in));
+	}
+
+	/***********************************************/
+	/* NAME:	open_byte_stream               */
+	/* INPUT:       a filename, or null for stdin  */
+	/* OUTPUT:      the input before decoding, or  */
+	/*              null when it can't be opened   */
+	/***********************************************/
+	InputStream open_byte_stream(String fname) {
+		if (fname == null)
+			return System.in;
+		try {
+			if (fname.endsWith(".gz"))	/* gunzip in a pipeline thread */
+				return Archiveinput.open_gzip(fname);
+			return new FileInputStream(fname);
+		} catch (FileNotFoundException e) {
+			System.out.print("The file " + fname +" doesn't exists\n");
+			e.printStackTrace();
+		} catch (IOException e) {
+			System.out.print("The file " + fname +" can't be read\n");
+			e.printStackTrace();
 		}
-		
-		return br; 
+		return null;
 	}
 	
 	/**********************************************/
@@ -89,12 +153,28 @@ public class Printtokens{
 	/* NAME :	get_token                               */
 	/* INPUT: 	a BufferedReader          */
 	/* OUTPUT:      a token string                                */
+	/* DESCRIPTION: keeps a Charstream over the reader so   */
+	/*              successive calls share its lookahead    */
+	/********************************************************/
+	String get_token(BufferedReader br)
+	{
+	  if (stream == null || stream.source() != br)
+	    stream = new Charstream(br);
+	  return get_token(stream);
+	}
+
+	/********************************************************/
+	/* NAME :	get_token                               */
+	/* INPUT: 	a Charstream                            */
+	/* OUTPUT:      a token string                                */
 	/* DESCRIPTION: according the syntax of tokens,dealing  */
 	/*              with different case  and get one token  */
 	/********************************************************/
-	String get_token(BufferedReader br)
+	String get_token(Charstream cs)
 	{ 
-	  int i=0,j; 		// unused variables - MB
+	  if (lexer != null)
+	    return lexer.get_token(cs, skip_comments, skip_strings);
+	  Grammar g = grammar;
 	  int id=0;
 	  int res = 0;
 	  char ch = '\0';
@@ -102,60 +182,57 @@ public class Printtokens{
 	  StringBuilder sb = new StringBuilder();
 
 	   try {
-		   res = get_char(br);
-		   if (res == -1) {
-			   return null;
-		   }
-		   ch = (char)res;
-		  while(ch==' '||ch=='\n' || ch == '\r')   
+		   res = cs.get_char();
+		   while (true) {
+		  while(res==' '||res=='\n' || res == '\r')   
 	      {
-			res = get_char(br);
-			ch = (char)res;
+			res = cs.get_char();
 	      } 
 	   
 	   if(res == -1)return null;
+	   if(skip_comments && res==g.comment_char)      /* excluded comment: jump to its end */
+	     { if(cs.skip_comment() == -1)return null;
+	       res = cs.get_char();
+	       continue;
+	     }
+	   if(skip_strings && res==g.string_delim && cs.skip_string(g.string_delim))  /* excluded string closed in this block */
+	     { res = cs.get_char();
+	       continue;
+	     }
+	   break;
+		   }
+	   if(cs.tracking())cs.mark_token();
+	   ch = (char)res;
 	   sb.append(ch);
-	   if(is_spec_symbol(ch)==true)return sb.toString(); 
-	   if(ch =='"')id=1;    /* prepare for string */ 		//id 1 and 2 are assignments are swapped - fixed - MB
-       if(ch ==59)id=2;    /* prepare for comment */ 
+	   if(g.is_spec_symbol(ch)==true)return sb.toString(); 
+	   if(ch ==g.string_delim)id=1;    /* prepare for string */ 		//id 1 and 2 are assignments are swapped - fixed - MB
+       if(ch ==g.comment_char)id=2;    /* prepare for comment */ 
 	   
-	   res = get_char(br);
-	   if (res == -1) {
-		   unget_char(ch,br);
-		   return sb.toString();
-	   }
-	   ch = (char)res;
-
-	   while (is_token_end(id,res) == false)/* until meet the end character */
+	   res = cs.get_char();
+	   while (g.is_token_end(id,res) == false)/* until meet the end character */
 	   {
-	       sb.append(ch);
-	       br.mark(4);
-	       res = get_char(br);
-		   if (res == -1) {
-			   break;
-		   }
-		   ch = (char)res;
+	       sb.append((char)res);
+	       res = cs.get_char();
 	   }
 	 
 	   if(res == -1)       /* if end character is eof token    */
-	      { unget_char(ch,br);        /* then put back eof on token_stream */
 	        return sb.toString();
-	      }
+	   ch = (char)res;
 	 
-	   if(is_spec_symbol(ch)==true)     /* if end character is special_symbol */
-	      { unget_char(ch,br);        /* then put back this character       */
+	   if(g.is_spec_symbol(ch)==true)     /* if end character is special_symbol */
+	      { cs.unget_char();        /* then put back this character       */
 	        return sb.toString();
 	      }
 	   if(id==1)                  /* if end character is " and is string */
 	     {
-		   if (ch == '"') {
+		   if (ch == g.string_delim) {
 			   sb.append(ch);
 		   }
 	       return sb.toString(); 
 	     }
-	   if(id==0 && ch==59)
+	   if(id==0 && ch==g.comment_char)
 	                                   /* when not in string or comment,meet ";" */
-	     { unget_char(ch,br);       /* then put back this character         */
+	     { cs.unget_char();       /* then put back this character         */
 	       return sb.toString(); 
 	     }
 	} catch (IOException e) {
@@ -172,26 +249,7 @@ public class Printtokens{
 	/*******************************************************/
 	static boolean is_token_end(int str_com_id, int res)
 	{
-	 if(res==-1)return(true); /* is eof token? */
-	 char ch = (char)res;
-	 if(str_com_id==1)          /* is string token */
-	    { if(ch=='"' || ch=='\n' || ch == '\r' || ch=='\t')   /* for string until meet another " */ 
-	         return true;
-	      else
-	         return false;
-	    }
-
-	 if(str_com_id==2)    /* is comment token */
-	   { if(ch=='\n' || ch == '\r' || ch=='\t')     /* for comment until meet end of line */ 
-	        return true;
-	      else
-	        return false;
-	   }
-
-	 if(is_spec_symbol(ch)==true) return true; /* is special_symbol? */
-	 if(ch ==' ' || ch=='\n'|| ch=='\r' || ch==59) return true; 
-	                              /* others until meet blank or tab or 59 */
-	 return false;               /* other case,return FALSE */
+	 return Grammar.BUILTIN.is_token_end(str_com_id, res);
 	}
 	
 	/****************************************************/
@@ -199,60 +257,166 @@ public class Printtokens{
 	/* INPUT:       a token              */
 	/* OUTPUT:      an integer value                    */
 	/* DESCRIPTION: the integer value is corresponding  */
-	/*              to the different token type         */
+	/*              to the different token type of the  */
+	/*              built-in grammar                    */
 	/****************************************************/
 	static int token_type(String tok)
 	{ 
-	 if(is_keyword(tok))return(keyword);
-	 if(is_spec_symbol(tok.charAt(0)))return(spec_symbol);
-	 if(is_identifier(tok))return(identifier);
-	 if(is_num_constant(tok))return(num_constant);
-	 if(is_str_constant(tok))return(str_constant);
-	 if(is_char_constant(tok))return(char_constant);
-	 if(is_comment(tok))return(comment);
-	 return(error);                    /* else look as error token */
+	 return Grammar.BUILTIN.token_type(tok);
 	}
 	
+	/****************************************************/
+	/* NAME:	type_of                                 */
+	/* INPUT:	a token                                 */
+	/* OUTPUT:	its type in this tokenizer's grammar    */
+	/****************************************************/
+	int type_of(String tok)
+	{
+	  return lexer != null ? lexer.token_type(tok) : grammar.token_type(tok);
+	}
+
 	/****************************************************/
 	/* NAME:	print_token                             */
 	/* INPUT:	a token                                 */
 	/****************************************************/
 	void print_token(String tok)
 	{ int type;
-	  type=token_type(tok);
+	  if (cache != null && grammar.may_be_word(tok.charAt(0))) {	/* printed before: no classifying or encoding */
+	    byte[] l = cache.get(tok);
+	    if (l != null) {
+	      out().write(l, 0, l.length);
+	      return;
+	    }
+	  }
+	  type=type_of(tok);
+	 if(shown != null && shown[type] == false)return;  /* filtered out */
 	 if(type==error)
 	   { 
-	   	System.out.print("error,\"" + tok + "\".\n");
+	   	out().print("error,\"" + tok + "\".\n");
 	   }
 	   
 	 if(type==keyword)
 	   {
-	   System.out.print("keyword,\"" + tok + "\".\n");
+	   print_quoted(KEYWORD_PREFIX, tok, out());
 	   }
 	  
-	 if(type==spec_symbol)print_spec_symbol(tok);
+	 if(type==spec_symbol)print_spec_symbol(grammar, tok, out());
 	 if(type==identifier)
 	   {
-	   System.out.print("identifier,\"" + tok + "\".\n");
+	   print_quoted(IDENTIFIER_PREFIX, tok, out());
 	   }
 	 if(type==num_constant)
 	   {
-	   System.out.print("numeric," + tok + ".\n");
+	   out().print("numeric," + tok + ".\n");
 	   }
 	 if(type==str_constant)
 	   {
-	   System.out.print("string," + tok + ".\n");
+	   out().print("string," + tok + ".\n");
 	   }	 
 	 if(type==char_constant)
 	   {
-	    System.out.print("character,\"" + tok.charAt(1) + "\".\n");
+	    out().print("character,\"" + tok.charAt(1) + "\".\n");
 	   }
 	 if(type==comment)
 	   {
-	    System.out.print("comment,\"" + tok + "\".\n");
+	    out().print("comment,\"" + tok + "\".\n");
 	   }
    }
 
+	/****************************************************/
+	/* NAME:	print_quoted                            */
+	/* INPUT:	a fixed prefix, a token and the stream  */
+	/* DESCRIPTION: prefix + tok + "\".\n" as one bulk  */
+	/*              write; an ASCII token is copied in  */
+	/*              as bytes, anything else goes        */
+	/*              through the stream's encoder        */
+	/****************************************************/
+	private void print_quoted(byte[] prefix, String tok, PrintStream ps)
+	{
+	  int n = prefix.length + tok.length() + QUOTE_END.length;
+	  if (n > line.length)
+	    line = new byte[Math.max(n, 2 * line.length)];
+	  System.arraycopy(prefix, 0, line, 0, prefix.length);
+	  int at = prefix.length;
+	  for (int i = 0; i < tok.length(); i++) {
+	    char c = tok.charAt(i);
+	    if (c >= 128) {
+	      ps.print(new String(prefix, java.nio.charset.StandardCharsets.US_ASCII) + tok + "\".\n");
+	      return;
+	    }
+	    line[at++] = (byte) c;
+	  }
+	  System.arraycopy(QUOTE_END, 0, line, at, QUOTE_END.length);
+	  if (cache != null)
+	    cache.put(tok, line, n);
+	  ps.write(line, 0, n);
+	}
+
+	/****************************************************/
+	/* NAME:	print_token                             */
+	/* INPUT:	a token and its line and column         */
+	/* DESCRIPTION: same as print_token, prefixed with  */
+	/*              "line:column ". columns count chars */
+	/*              from 1 in every mode, whatever the  */
+	/*              bytes of the input                  */
+	/****************************************************/
+	void print_token(String tok, long row, long col)
+	{
+	  out().print(row + ":" + col + " ");
+	  print_token(tok);
+	}
+
+	/****************************************************/
+	/* NAME:	type_code                               */
+	/* INPUT:	a type name as printed by print_token   */
+	/*              ("symbol" for the special symbols)  */
+	/* OUTPUT:	the token type code                     */
+	/****************************************************/
+	static int type_code(String name)
+	{
+	  switch (name) {
+	    case "error": return error;
+	    case "keyword": return keyword;
+	    case "symbol": return spec_symbol;
+	    case "identifier": return identifier;
+	    case "numeric": return num_constant;
+	    case "string": return str_constant;
+	    case "character": return char_constant;
+	    case "comment": return comment;
+	    default: throw new IllegalArgumentException("Unknown token type " + name);
+	  }
+	}
+
+	/****************************************************/
+	/* NAME:	set_filter                              */
+	/* INPUT:	comma separated type names to keep, or  */
+	/*              to drop; either may be null         */
+	/* DESCRIPTION: dropped types are not formatted;    */
+	/*              dropped comments, and dropped       */
+	/*              strings that close inside the       */
+	/*              current block, are skipped by       */
+	/*              get_token without building a token  */
+	/****************************************************/
+	void set_filter(String only, String exclude)
+	{
+	  if (cache != null)
+	    cache.clear();	/* its lines were for the old filter */
+	  shown = new boolean[char_constant + 1];
+	  if (only == null) {
+	    for (String name : new String[] {"error", "keyword", "symbol", "identifier", "numeric", "string", "character", "comment"})
+	      shown[type_code(name)] = true;
+	  } else {
+	    for (String name : only.split(","))
+	      shown[type_code(name.trim())] = true;
+	  }
+	  if (exclude != null) {
+	    for (String name : exclude.split(","))
+	      shown[type_code(name.trim())] = false;
+	  }
+	  skip_comments = !shown[comment];
+	  skip_strings = !shown[str_constant];
+	}
+
 	/* the code for tokens judgment function */
 
 	
@@ -263,10 +427,7 @@ public class Printtokens{
 	/*************************************/
 	static boolean is_comment(String ident)
 	{
-	  if( ident.charAt(0) ==59 )   /* the char is 59   */
-	     return true;
-	  else
-	     return false;
+	  return Grammar.BUILTIN.is_comment(ident);
 	}
 	
 	/*************************************/
@@ -276,11 +437,7 @@ public class Printtokens{
 	/*************************************/
 	static boolean is_keyword(String str)
 	{ 
-	 if (str.equals("and") || str.equals("or") || str.equals("if") ||
-			 str.equals("xor")||str.equals("lambda")||str.equals("=>"))
-	      return true;
-	  else 
-	      return false;
+	  return Grammar.BUILTIN.is_keyword(str);
 	}
 	
 	/*************************************/
@@ -290,10 +447,7 @@ public class Printtokens{
 	/*************************************/
 	static boolean is_char_constant(String str)
 	{
-	  if (str.length() == 2 && str.charAt(0)=='#' && Character.isLetter(str.charAt(1))) 	// str.length needs to be exactly 2 should be == and use && instead of || - fixed MB
-	     return true;
-	  else  
-	     return false;
+	  return Grammar.BUILTIN.is_char_constant(str);
 	}
 	
 	/*************************************/
@@ -328,19 +482,7 @@ public class Printtokens{
 	/*************************************/
 	static boolean is_str_constant(String str)
 	{
-	  int i=1;
-	 
-	  if ( str.charAt(0) =='"')
-	     { while (i < str.length() && str.charAt(i)!='\0') 
-	         { if(str.charAt(i)=='"' )
-	             return true;        /* meet the second '"'           */
-	           else
-	           i++;
-	         }               /* end WHILE */
-	     return false;		// was return true, should be return false because closing quote was never found - fixed - MB
-	    }
-	  else
-	    return false;       /* other return FALSE */
+	  return Grammar.BUILTIN.is_str_constant(str);
 	}
 	
 	/*************************************/
@@ -377,46 +519,27 @@ public class Printtokens{
 	/*************************************************/
 	static void print_spec_symbol(String str)
 	{
-		if      (str.equals("(")) 		// checking for wrong parenthesis - fixed - MB
-	    {
-	         
-	             System.out.print("lparen.\n");
-	             return;
-	    } 
-	    if (str.equals(")"))
-	    {
-	      
-	             System.out.print("rparen.\n");
-	             return;
-	    }
-	    if (str.equals("["))
-	    {
-	             System.out.print("lsquare.\n");
-	             return;
-	    }
-	    if (str.equals("]"))
-	    {
-	       
-	             System.out.print("rsquare.\n");
-	             return;
-	    }
-	    if (str.equals("'"))
-	    {
-	             System.out.print("quote.\n");
-	             return;
-	    }
-	    if (str.equals("`"))
-	    {
-	 
-	             System.out.print("bquote.\n");
-	             return;
-	    }
-	    
-	    if (str.equals(","))
-	    {	 
-	             System.out.print("comma.\n");
-	             return;
-	    }
+		print_spec_symbol(str, System.out);
+	}
+
+	static void print_spec_symbol(String str, PrintStream out)
+	{
+		print_spec_symbol(Grammar.BUILTIN, str, out);
+	}
+
+	/* one lookup in the grammar's table of encoded lines and one bulk write */
+	static void print_spec_symbol(Grammar g, String str, PrintStream out)
+	{
+		if (str.length() == 1 && str.charAt(0) < Grammar.TABLE) {
+			byte[] line = g.spec_lines[str.charAt(0)];
+			if (line != null) {
+				out.write(line, 0, line.length);
+				return;
+			}
+		}
+		String name = g.spec_name(str);
+		if (name != null)
+			out.print(name + ".\n");
 	}
 	
 	/*************************************/
@@ -426,54 +549,339 @@ public class Printtokens{
 	/*************************************/
 	static boolean is_spec_symbol(char c)
 	{
-	    if (c == '(')
-	    {  
-	        return true;
-	    }
-	    if (c == ')')
-	    {
-	        return true;
-	    }
-	    if (c == '[')
-	    {
-	        return true;
-	    }
-	    if (c == ']')
-	    {
-	        return true;
-	    }
-	    if (c == '\'') // should be a normal quote not a slash - fixed MB
-	    {
-	        return true;
-	    }
-	    if (c == '`')
-	    {
-	        return true;
+	    return Grammar.BUILTIN.is_spec_symbol(c);
+	}
+	
+	/****************************************************/
+	/* NAME:	run_mode                                */
+	/* INPUT:	a mode name, its value and a filename   */
+	/* DESCRIPTION: the modes besides plain printing:   */
+	/*   --build-index[=K]  write the sidecar index      */
+	/*   --tokens=FROM-TO   print tokens [FROM, TO)      */
+	/*   --line=N           print the tokens on line N   */
+	/*   --watch=MIRROR     keep MIRROR a tokenized copy */
+	/*                      of the directory fname       */
+	/*   --bench-engines[=R] time both scanners, R rounds */
+	/*   --offheap[=text]   count tokens by type through  */
+	/*                      an off-heap Tokenstore        */
+	/*   --query=Q          run a Tokentable query over   */
+	/*                      the file or directory fname   */
+	/*   --sketch[=K[,BYTES]] top K identifiers and the   */
+	/*                      distinct count in BYTES       */
+	/*   --diff=OTHER       token changes from fname to   */
+	/*                      OTHER                         */
+	/*   --direct[=[map:]OUT] print without Strings, long */
+	/*                      bodies straight from the      */
+	/*                      mapped input; OUT mapped too  */
+	/*   --profile[=R]      time and allocation of scan,  */
+	/*                      classify and print, R rounds  */
+	/*   --shadow[=RATE]    print with the compiled       */
+	/*                      scanner, check RATE of the    */
+	/*                      chunks against the legacy one */
+	/*   --index=OUT        inverted index of the words   */
+	/*                      in the file or directory      */
+	/*   --lookup=WORD      where WORD occurs, from the   */
+	/*                      index file fname              */
+	/*   --shard[=N]        print the file or directory   */
+	/*                      with N worker processes       */
+	/*   --checkpoint=OUT   print to OUT, checkpointing   */
+	/*                      as it goes                    */
+	/*   --resume=OUT       go on with a --checkpoint run */
+	/*                      from its last checkpoint      */
+	/*   --follow[=end]     print the file as it grows,   */
+	/*                      from its start or its end     */
+	/*   --live[=POLICY]    print each token of stdin (or */
+	/*                      fname) once it ends, flushing */
+	/*                      per token, line, batch[:MS]   */
+	/*                      or block                      */
+	/****************************************************/
+	void run_mode(String mode, String value, String fname)
+	{
+	  if (mode.equals("--live")) {
+	    live(value, fname);
+	    return;
+	  }
+	  if (fname == null || fname.equals("")) {
+	    System.out.print("Error! " + mode + " needs a file\n");
+	    return;
+	  }
+	  java.nio.file.Path file = java.nio.file.Paths.get(fname);
+	  try {
+	    if (mode.equals("--build-index")) {
+	      int every = value == null ? Tokenindex.DEFAULT_EVERY : Integer.parseInt(value);
+	      Tokenindex ix = Tokenindex.build(unfiltered(), file, every);	/* ordinals count every token */
+	      ix.write(Tokenindex.sidecar(file));
+	      System.out.print("indexed " + ix.tokens + " tokens, " + ix.checkpoints() + " checkpoints\n");
+	    } else if (mode.equals("--tokens") || mode.equals("--line")) {
+	      Tokenindex ix = Tokenindex.read(Tokenindex.sidecar(file));
+	      if (!ix.is_current(file)) {
+	        System.out.print("Error! The index of " + fname + " is out of date\n");
+	        return;
+	      }
+	      if (mode.equals("--line")) {
+	        ix.print_line(this, file, Long.parseLong(value));
+	      } else {
+	        int dash = value.indexOf('-');
+	        ix.print_tokens(this, file, Long.parseLong(value.substring(0, dash)), Long.parseLong(value.substring(dash + 1)));
+	      }
+	    } else if (mode.equals("--watch")) {
+	      try (Treewatcher w = new Treewatcher(this, file, java.nio.file.Paths.get(value), Treewatcher.DEBOUNCE_MS)) {
+	        w.log = System.out;
+	        w.bulk_pass();
+	        w.watch();
+	      }
+	    } else if (mode.equals("--offheap")) {
+	      try (Tokenstore store = Tokenstore.tokenize(this, new Charstream(java.nio.channels.FileChannel.open(file)), "text".equals(value))) {
+	        long[] counts = new long[char_constant + 1];
+	        store.for_each((i, type, offset, length) -> counts[type]++);
+	        out().print("tokens," + store.size() + ".\n");
+	        for (String name : new String[] {"error", "keyword", "symbol", "identifier", "numeric", "string", "character", "comment"})
+	          out().print(name + "," + counts[type_code(name)] + ".\n");
+	        out().print("offheap," + store.offheap_bytes() + ".\n");
+	      }
+	    } else if (mode.equals("--query")) {
+	      Tokentable.build(unfiltered(), file).query(value, out(), threads);
+	    } else if (mode.equals("--sketch")) {
+	      String[] v = value == null ? new String[0] : value.split(",");
+	      Tokensketch.run(unfiltered(), file, v.length > 0 ? Integer.parseInt(v[0]) : Tokensketch.DEFAULT_TOP,
+	          v.length > 1 ? Long.parseLong(v[1]) : Tokensketch.DEFAULT_BUDGET, out());
+	    } else if (mode.equals("--diff")) {
+	      if (value == null) {
+	        System.out.print("Error! --diff needs a second file\n");
+	        return;
+	      }
+	      Tokendiff d = new Tokendiff();
+	      Tokendiff.Side a, b;
+	      try (Charstream cs = new Charstream(java.nio.channels.FileChannel.open(file))) {
+	        a = d.read(this, cs);
+	      }
+	      try (Charstream cs = new Charstream(java.nio.channels.FileChannel.open(java.nio.file.Paths.get(value)))) {
+	        b = d.read(this, cs);
+	      }
+	      out().print("changes," + d.print(this, a, b) + ".\n");
+	    } else if (mode.equals("--direct")) {
+	      if (value == null)
+	        Directprinter.print_stream(this, file, out());
+	      else if (value.startsWith("map:"))
+	        Directprinter.print_mapped(this, file, java.nio.file.Paths.get(value.substring(4)));
+	      else
+	        Directprinter.print_file(this, file, java.nio.file.Paths.get(value));
+	    } else if (mode.equals("--profile")) {
+	      Stageprofile.measure(this, java.nio.file.Files.readAllBytes(file), value == null ? 5 : Integer.parseInt(value)).report(out());
+	    } else if (mode.equals("--shadow")) {
+	      Printtokens fast = fork();
+	      if (fast.lexer == null)
+	        fast.lexer = Lexergen.compile(grammar);
+	      Printtokens legacy = fork();
+	      legacy.lexer = null;
+	      Shadowcheck s = new Shadowcheck(fast, legacy, value == null ? 0.01 : Double.parseDouble(value), System.err);
+	      try (InputStream in = java.nio.file.Files.newInputStream(file)) {
+	        s.serve(in, out());
+	      } finally {
+	        s.close();
+	      }
+	      System.err.print("shadow,chunks " + s.chunks + ",sampled " + s.sampled + ",skipped " + s.skipped + ",divergences " + s.divergences + ".\n");
+	    } else if (mode.equals("--index")) {
+	      int words = Postingindex.build(unfiltered(), file, java.nio.file.Paths.get(value));
+	      out().print("indexed," + words + ".\n");
+	    } else if (mode.equals("--lookup")) {
+	      try (Postingindex ix = Postingindex.open(file)) {
+	        long n = ix.lookup(value, (f, offset) -> out().print("file,\"" + ix.file_name(f) + "\"," + offset + ".\n"));
+	        out().print("matches," + n + ".\n");
+	      }
+	    } else if (mode.equals("--shard")) {
+	      Shardrunner r = new Shardrunner(flags, value == null ? threads : Integer.parseInt(value));
+	      r.run(file, out());
+	      r.report(System.err);
+	    } else if (mode.equals("--checkpoint") || mode.equals("--resume")) {
+	      java.nio.file.Path to = java.nio.file.Paths.get(value);
+	      try (Checkpointer c = mode.equals("--resume") ? Checkpointer.resume(this, file, to, Checkpointer.CHUNK)
+	          : Checkpointer.start(this, file, to, Checkpointer.CHUNK)) {
+	        c.run();
+	        c.report(System.err);
+	      }
+	    } else if (mode.equals("--follow")) {
+	      try (Follower f = new Follower(this, file, "end".equals(value))) {
+	        f.log = System.err;
+	        f.run();
+	      }
+	    } else if (mode.equals("--bench-engines")) {
+	      Lexergen.bench(this, file, value == null ? 5 : Integer.parseInt(value), out());
+	    } else {
+	      System.out.print("Error! Unknown option " + mode + "\n");
 	    }
-	    if (c == ',')
-	    {
-	        return true;
+	  } catch (IOException | RuntimeException e) {
+	    System.out.print("Error! " + mode + " failed: " + e + "\n");
+	  }
+	}
+
+	/* --live: the latency summary goes to stderr, clear of the tokens */
+	void live(String policy, String fname)
+	{
+	  try {
+	    Liveprinter p = Liveprinter.of(this, policy, out());
+	    if (fname == null || fname.equals("")) {
+	      p.run(System.in);
+	    } else {
+	      try (InputStream in = new FileInputStream(fname)) {
+	        p.run(in);
+	      }
 	    }
-	    return false;     /* others return FALSE */
+	    p.report(System.err);
+	  } catch (IOException | RuntimeException e) {
+	    System.out.print("Error! --live failed: " + e + "\n");
+	  }
 	}
-	
+
 	public static void main(String[] args)  {
 		String fname = null;
-		if (args.length == 0) {	/* if not given filename,take as '""' */
+		Printtokens t = new Printtokens();
+		boolean positions = false;
+		String mode = null;		/* --name[=value] of a non-default run mode */
+		String mode_arg = null;
+		String only = null;
+		String exclude = null;
+		String spec = null;
+		String budget = null;
+		boolean binary_skip = false;
+		long cache_cap = -1;
+		boolean compiled = false;
+		int nfiles = 0;
+		for (String arg : args) {
+			if (arg.equals("--positions")) {	/* prefix tokens with line:column */
+				positions = true;
+			} else if (arg.startsWith("--threads=")) {	/* workers of the parallel modes */
+				String n = arg.substring("--threads=".length());
+				try {
+					t.threads = Integer.parseInt(n);
+				} catch (NumberFormatException e) {
+					t.threads = 0;
+				}
+				if (t.threads <= 0) {
+					System.out.print("Error! --threads needs a positive count, not " + n + "\n");
+					return;
+				}
+			} else if (arg.equals("--engine=compiled")) {	/* generate a scanner for the grammar */
+				compiled = true;
+				t.flags.add(arg);
+			} else if (arg.equals("--engine=interpreted")) {
+				compiled = false;
+				t.flags.add(arg);
+			} else if (arg.startsWith("--grammar=")) {	/* language spec file */
+				spec = arg.substring("--grammar=".length());
+				t.flags.add("--grammar=" + new File(spec).getAbsolutePath());
+			} else if (arg.startsWith("--only=")) {	/* print only these types */
+				only = arg.substring("--only=".length());
+				t.flags.add(arg);
+			} else if (arg.startsWith("--error-budget=")) {	/* N[,RATIO][,abort] error tokens */
+				budget = arg.substring("--error-budget=".length());
+			} else if (arg.equals("--line-cache") || arg.startsWith("--line-cache=")) {	/* cache lines in BYTES */
+				cache_cap = arg.indexOf('=') < 0 ? Linecache.DEFAULT_CAP : Long.parseLong(arg.substring("--line-cache=".length()));
+				t.flags.add(arg);
+			} else if (arg.equals("--binary=skip")) {	/* only count input that looks binary */
+				binary_skip = true;
+			} else if (arg.equals("--binary=text")) {	/* tokenize it, the default */
+				binary_skip = false;
+			} else if (arg.startsWith("--exclude=")) {	/* print all but these types */
+				exclude = arg.substring("--exclude=".length());
+				t.flags.add(arg);
+			} else if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				mode = eq < 0 ? arg : arg.substring(0, eq);
+				mode_arg = eq < 0 ? null : arg.substring(eq + 1);
+			} else {
+				fname = arg;
+				nfiles++;
+			}
+		}
+		if (nfiles == 0) {	/* if not given filename,take as '""' */
 			fname = new String();
-		} else if (args.length == 1) {
-			fname = args[0]; 
-		} else {
+		} else if (nfiles > 1) {
+			fname = null;
 			System.out.print("Error! Please give the token stream\n");	
 
 		}
-		Printtokens t = new Printtokens();
-		BufferedReader br = t.open_token_stream(fname);	/* open token stream */
-		String tok = t.get_token(br);
+		if (spec != null) {
+			try {
+				t.grammar = Grammar.load(java.nio.file.Paths.get(spec));
+			} catch (IOException | RuntimeException e) {
+				System.out.print("Error! Can't load the grammar " + spec + ": " + e.getMessage() + "\n");
+				return;
+			}
+		}
+		if (compiled) {
+			try {
+				t.lexer = Lexergen.compile(t.grammar);
+				if (t.lexer == null)
+					System.err.print("No compiler available, using the interpreted scanner\n");
+			} catch (IllegalStateException e) {
+				System.err.print("Can't generate a scanner for the grammar, using the interpreted scanner: " + e.getMessage() + "\n");
+			}
+		}
+		if (only != null || exclude != null) {
+			try {
+				t.set_filter(only, exclude);
+			} catch (IllegalArgumentException e) {
+				System.out.print("Error! " + e.getMessage() + "\n");
+				return;
+			}
+		}
+		if (cache_cap >= 0)
+			t.cache = new Linecache(cache_cap);
+		if ("--worker".equals(mode)) {	/* a --shard worker, fed on stdin */
+			try {
+				Shardrunner.work(t, System.in, System.out);
+			} catch (IOException e) {
+				System.err.print("Error! The worker failed: " + e + "\n");
+				System.exit(1);
+			}
+			return;
+		}
+		if (mode != null) {
+			t.run_mode(mode, mode_arg, fname);
+			return;
+		}
+		if (fname != null && fname.endsWith(".zip")) {	/* every entry, in archive order */
+			try {
+				Archiveinput.print_zip(t, java.nio.file.Paths.get(fname), t.out());
+			} catch (IOException e) {
+				System.out.print("Error! Can't read the archive " + fname + ": " + e + "\n");
+			}
+			return;
+		}
+		InputStream in = t.open_byte_stream(fname == null || fname.equals("") ? null : fname);	/* open token stream */
+		if (in == null) return;
+		Errorguard guard;
+		try {
+			guard = budget == null ? null : Errorguard.of(t, budget);
+			if (binary_skip) {
+				in = new BufferedInputStream(in, Errorguard.SNIFF);
+				if (Errorguard.looks_binary(in)) {	/* not tokenized; read through for the size */
+					t.out().print("binary," + in.transferTo(OutputStream.nullOutputStream()) + ".\n");
+					return;
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.print("Error! " + e.getMessage() + "\n");
+			return;
+		}
+		Charstream cs = new Charstream(new BufferedReader(new InputStreamReader(in)));
+		if (positions) cs.track_positions(null);
+		String tok = t.get_token(cs);
 		while (tok != null) {	/* take one token each time until eof */
-			t.print_token(tok);
-			tok = t.get_token(br);
+			if (guard != null) {
+				if (!guard.print(tok, positions ? cs : null))
+					break;
+			} else if (positions)
+				t.print_token(tok, cs.token_line, cs.token_col);
+			else
+				t.print_token(tok);
+			tok = t.get_token(cs);
 			
 		}		
+		if (guard != null)
+			guard.finish(cs);
+		if (t.cache != null)
+			System.err.print(t.cache);
 	}
 }
\ No newline at end of file
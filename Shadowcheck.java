@@ -0,0 +1,243 @@
+package main.printtokens;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/*****************************************************/
+/* NAME:        Shadowcheck                          */
+/* DESCRIPTION: serves the output of a fast engine   */
+/*              and re-tokenizes a sample of the     */
+/*              input with the legacy one on a       */
+/*              background thread. the input is cut  */
+/*              into chunks at newlines, where no    */
+/*              token can continue, and each sampled */
+/*              chunk is checked by a CRC of both    */
+/*              outputs. on a mismatch both token    */
+/*              lists are diffed and the changed     */
+/*              tokens are logged with their input   */
+/*              lines. a chunk is only sampled when  */
+/*              a check slot is free, so the serving */
+/*              path never waits for the shadow      */
+/*****************************************************/
+final class Shadowcheck implements Closeable {
+	static final int CHUNK = 1 << 20;
+	static final int IN_FLIGHT = 4;		/* sampled chunks held at once */
+
+	private final Printtokens fast;
+	private final Printtokens legacy;
+	private final double rate;
+	private final PrintStream log;
+	private final ExecutorService checker = Executors.newSingleThreadExecutor(r -> {
+		Thread th = new Thread(r, "shadow-check");
+		th.setDaemon(true);
+		return th;
+	});
+	private final Semaphore slots = new Semaphore(IN_FLIGHT);
+	private double credit = 0;
+
+	final AtomicLong chunks = new AtomicLong();
+	final AtomicLong sampled = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();	/* due a check, but every slot was busy */
+	final AtomicLong divergences = new AtomicLong();
+
+	/**********************************************/
+	/* NAME:	Shadowcheck                   */
+	/* INPUT:       the engine that serves, the   */
+	/*              reference engine, the share   */
+	/*              of chunks to check (0 to 1)   */
+	/*              and where to log divergences  */
+	/**********************************************/
+	Shadowcheck(Printtokens fast, Printtokens legacy, double rate, PrintStream log) {
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException("Sampling rate must be between 0 and 1");
+		this.fast = fast;
+		this.legacy = legacy;
+		this.rate = rate;
+		this.log = log;
+	}
+
+	/**********************************************/
+	/* NAME:	serve                         */
+	/* INPUT:       an input and the output       */
+	/* DESCRIPTION: prints every token with the   */
+	/*              fast engine, checking a       */
+	/*              sample of chunks              */
+	/**********************************************/
+	void serve(InputStream in, PrintStream out) throws IOException {
+		Crcstream crc = new Crcstream(out);
+		Printtokens t = fast.fork();
+		t.out = new PrintStream(crc);
+		byte[] buf = new byte[CHUNK];
+		int len = 0;
+		long offset = 0;
+		while (true) {
+			if (len == buf.length)	/* one line longer than the buffer */
+				buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+			int n = in.read(buf, len, buf.length - len);
+			if (n < 0)
+				break;
+			int scanned = len;	/* what is held has no newline */
+			len += n;
+			int cut = len;
+			while (cut > scanned && buf[cut - 1] != '\n')
+				cut--;
+			if (cut == scanned)
+				continue;		/* no newline yet, read more */
+			chunk(t, crc, buf, cut, offset);
+			System.arraycopy(buf, cut, buf, 0, len - cut);
+			len -= cut;
+			offset += cut;
+		}
+		if (len > 0)
+			chunk(t, crc, buf, len, offset);
+		t.out.flush();
+	}
+
+	private void chunk(Printtokens t, Crcstream crc, byte[] buf, int len, long offset) throws IOException {
+		long index = chunks.getAndIncrement();
+		crc.crc.reset();
+		print(t, buf, len);
+		credit += rate;
+		if (credit < 1)
+			return;
+		credit -= 1;
+		if (!slots.tryAcquire()) {
+			skipped.incrementAndGet();
+			return;
+		}
+		sampled.incrementAndGet();
+		long served = crc.crc.getValue();
+		byte[] copy = java.util.Arrays.copyOf(buf, len);
+		checker.execute(() -> {
+			try {
+				check(copy, served, index, offset);
+			} finally {
+				slots.release();
+			}
+		});
+	}
+
+	private static void print(Printtokens t, byte[] buf, int len) throws IOException {
+		Charstream cs = new Charstream(new InputStreamReader(new ByteArrayInputStream(buf, 0, len)));
+		try {
+			String tok;
+			while ((tok = t.get_token(cs)) != null)
+				t.print_token(tok);
+		} finally {
+			cs.release();
+		}
+	}
+
+	/* background: CRC of the legacy output, and the diff when it differs */
+	private void check(byte[] chunk, long served, long index, long offset) {
+		try {
+			Crcstream crc = new Crcstream(OutputStream.nullOutputStream());
+			Printtokens t = legacy.fork();
+			t.out = new PrintStream(crc);
+			print(t, chunk, chunk.length);
+			t.out.flush();
+			if (crc.crc.getValue() != served)
+				report(chunk, index, offset);
+		} catch (IOException | RuntimeException e) {
+			log.print("error,chunk " + index + "," + e + ".\n");
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	report                        */
+	/* DESCRIPTION: logs each differing range of  */
+	/*              output lines, the legacy ones */
+	/*              after "-" and the fast ones   */
+	/*              after "+", with the input     */
+	/*              lines they came from          */
+	/**********************************************/
+	private void report(byte[] chunk, long index, long offset) throws IOException {
+		divergences.incrementAndGet();
+		List<String> want = new ArrayList<>();
+		List<String> got = new ArrayList<>();
+		List<Long> want_lines = new ArrayList<>();
+		List<Long> got_lines = new ArrayList<>();
+		lines(legacy, chunk, want, want_lines);
+		lines(fast, chunk, got, got_lines);
+		Map<String, Integer> ids = new HashMap<>();
+		int[] a = intern(want, ids);
+		int[] b = intern(got, ids);
+		String[] input = new String(chunk).split("\n", -1);
+		for (int[] h : Tokendiff.diff(a, a.length, b, b.length)) {
+			long line = h[0] < want_lines.size() ? want_lines.get(h[0]) : got_lines.get(Math.min(h[2], got_lines.size() - 1));
+			log.print("divergence,chunk " + index + ",offset " + offset + ",line " + line + ".\n");
+			for (int i = h[0]; i < h[1]; i++)
+				log.print("-" + want.get(i));
+			for (int i = h[2]; i < h[3]; i++)
+				log.print("+" + got.get(i));
+			long last = h[1] > h[0] ? want_lines.get(h[1] - 1) : line;
+			for (long l = line; l <= last && l - 1 < input.length; l++)
+				log.print("fragment,\"" + input[(int) l - 1] + "\".\n");
+		}
+		log.flush();
+	}
+
+	/* each token's output line and the input line it started on */
+	private static void lines(Printtokens proto, byte[] chunk, List<String> out, List<Long> at) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		Printtokens t = proto.fork();
+		t.out = new PrintStream(b, true);
+		try (Charstream cs = new Charstream(new InputStreamReader(new ByteArrayInputStream(chunk)))) {
+			cs.track_positions(null);
+			String tok;
+			while ((tok = t.get_token(cs)) != null) {
+				t.print_token(tok);
+				t.out.flush();
+				if (b.size() > 0) {
+					out.add(b.toString());
+					at.add(cs.token_line);
+					b.reset();
+				}
+			}
+		}
+	}
+
+	private static int[] intern(List<String> lines, Map<String, Integer> ids) {
+		int[] a = new int[lines.size()];
+		for (int i = 0; i < a.length; i++)
+			a[i] = ids.computeIfAbsent(lines.get(i), k -> ids.size());
+		return a;
+	}
+
+	/* waits for the checks still running */
+	public void close() {
+		checker.shutdown();
+		try {
+			checker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* the bytes on their way out, hashed as they pass */
+	private static final class Crcstream extends FilterOutputStream {
+		final CRC32C crc = new CRC32C();
+
+		Crcstream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			crc.update(b);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			out.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*****************************************************/
+/* NAME:        Shardrunner                          */
+/* DESCRIPTION: tokenizes a file or a directory in   */
+/*              worker JVMs, each with its own heap  */
+/*              and GC. the input is cut into shards */
+/*              (newline-aligned byte ranges of each */
+/*              file, where no token can continue)   */
+/*              and an idle worker takes the next    */
+/*              one, so a slow shard holds up one    */
+/*              worker and not a fixed share of the  */
+/*              input. each shard is printed to a    */
+/*              file of its own and copied out in    */
+/*              input order as soon as every shard   */
+/*              before it is done. a shard whose     */
+/*              worker fails or dies is handed out   */
+/*              again, up to MAX_TRIES times         */
+/*****************************************************/
+final class Shardrunner {
+	static final long MIN_SHARD = 1 << 20;
+	static final long MAX_SHARD = 64L << 20;
+	static final int MAX_TRIES = 3;
+	private final List<String> flags;	/* tokenizer settings passed on to the workers */
+	private final int workers;
+	long shard_bytes = 0;		/* 0 sizes shards from the input and the workers */
+	List<String> launcher = java_command();	/* a worker's command line before the flags */
+
+	final long[] counts = new long[Tokencounts.TYPES.length];	/* tokens printed, by Tokencounts.TYPES */
+	long bytes;
+	int shards;
+	int retries;
+
+	/**********************************************/
+	/* NAME:	Shardrunner                   */
+	/* INPUT:       the command line flags of the */
+	/*              tokenizer settings and the    */
+	/*              number of worker processes    */
+	/**********************************************/
+	Shardrunner(List<String> flags, int workers) {
+		if (workers < 1)
+			throw new IllegalArgumentException("Need at least one worker");
+		this.flags = flags;
+		this.workers = workers;
+	}
+
+	static List<String> java_command() {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		return List.of(java, "-cp", System.getProperty("java.class.path"), Printtokens.class.getName());
+	}
+
+	private static final class Shard {
+		final int id;
+		final Path path;
+		final long offset;
+		final long length;
+		Path out;
+		int tries;
+		boolean done;
+
+		Shard(int id, Path path, long offset, long length) {
+			this.id = id;
+			this.path = path;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static final class Worker {
+		final Process p;
+		final Writer to;
+		Shard current;
+
+		Worker(Process p) {
+			this.p = p;
+			this.to = new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/* a line from a worker, or null when it has exited */
+	private static final class Event {
+		final Worker w;
+		final String line;
+
+		Event(Worker w, String line) {
+			this.w = w;
+			this.line = line;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	split                         */
+	/* OUTPUT:      the shards of each file, cut  */
+	/*              after the first newline past  */
+	/*              every size bytes              */
+	/**********************************************/
+	private List<Shard> split(List<Path> files) throws IOException {
+		long total = 0;
+		for (Path p : files)
+			total += Files.size(p);
+		long size = shard_bytes > 0 ? shard_bytes : Math.min(MAX_SHARD, Math.max(MIN_SHARD, total / (workers * 4L)));
+		List<Shard> all = new ArrayList<>();
+		java.nio.ByteBuffer b = java.nio.ByteBuffer.allocate(8192);
+		for (Path p : files) {
+			try (FileChannel ch = FileChannel.open(p)) {
+				long len = ch.size();
+				long start = 0;
+				do {
+					long end = start + size;
+					if (end >= len) {
+						end = len;
+					} else {
+						end = after_newline(ch, end, b);
+					}
+					all.add(new Shard(all.size(), p, start, end - start));
+					start = end;
+				} while (start < len);
+			}
+		}
+		return all;
+	}
+
+	/* the offset after the first newline at or past from, or the end of the file */
+	private static long after_newline(FileChannel ch, long from, java.nio.ByteBuffer b) throws IOException {
+		long pos = from;
+		while (true) {
+			b.clear();
+			int n = ch.read(b, pos);
+			if (n < 0)
+				return ch.size();
+			for (int i = 0; i < n; i++) {
+				if (b.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += n;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* INPUT:       a file or directory, where to */
+	/*              print its tokens              */
+	/* DESCRIPTION: starts the workers, deals out */
+	/*              the shards and merges their   */
+	/*              output in order               */
+	/**********************************************/
+	void run(Path input, OutputStream out) throws IOException {
+		List<Shard> all = split(Tokentable.inputs(input));
+		shards = all.size();
+		Deque<Shard> todo = new ArrayDeque<>(all);
+		BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+		List<Worker> started = new ArrayList<>();
+		Path dir = Files.createTempDirectory("printtokens-shards");
+		int live = 0;
+		try {
+			for (Shard s : all)
+				s.out = dir.resolve(s.id + ".out");
+			for (; live < Math.min(workers, all.size()); live++)
+				give(start(events, started), todo);
+			int next = 0;		/* the first shard not yet copied out */
+			while (next < all.size()) {
+				Event e = events.take();
+				Worker w = e.w;
+				if (e.line == null) {
+					live--;
+					if (w.current != null)
+						failed(w.current, "worker exited with " + w.p.waitFor(), todo);
+					w.current = null;
+					if (!todo.isEmpty() && live < workers) {
+						give(start(events, started), todo);
+						live++;
+					}
+					continue;
+				}
+				String[] f = e.line.split("\t", 3);
+				Shard s = w.current;
+				w.current = null;
+				if (s == null || !f[1].equals(Integer.toString(s.id)))
+					throw new IOException("Unexpected reply from a worker: " + e.line);
+				if (f[0].equals("done")) {
+					String[] c = f[2].split(",");
+					for (int i = 0; i < counts.length; i++)
+						counts[i] += Long.parseLong(c[i]);
+					bytes += s.length;
+					s.done = true;
+				} else {
+					failed(s, f[2], todo);
+				}
+				give(w, todo);
+				for (; next < all.size() && all.get(next).done; next++) {
+					Shard d = all.get(next);
+					Files.copy(d.out, out);
+					Files.delete(d.out);
+				}
+			}
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the workers");
+		} finally {
+			for (Worker w : started)
+				w.p.destroyForcibly();
+			for (Shard s : all)
+				Files.deleteIfExists(s.out);
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	private Worker start(BlockingQueue<Event> events, List<Worker> started) throws IOException {
+		List<String> cmd = new ArrayList<>(launcher);
+		cmd.addAll(flags);
+		cmd.add("--worker");
+		Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		Worker w = new Worker(p);
+		started.add(w);
+		Thread th = new Thread(() -> {
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = r.readLine()) != null)
+					events.add(new Event(w, line));
+			} catch (IOException e) {
+				/* the worker is gone; said below */
+			}
+			events.add(new Event(w, null));
+		}, "shard-worker");
+		th.setDaemon(true);
+		th.start();
+		return w;
+	}
+
+	/* the next shard for an idle worker; no shard left closes its input, and it exits */
+	private static void give(Worker w, Deque<Shard> todo) {
+		try {
+			Shard s = todo.poll();
+			if (s == null) {
+				w.to.close();
+				return;
+			}
+			w.current = s;
+			w.to.write(s.id + "\t" + s.offset + "\t" + s.length + "\t" + s.out + "\t" + s.path + "\n");
+			w.to.flush();
+		} catch (IOException e) {
+			/* it has died; its exit hands the shard out again */
+		}
+	}
+
+	/* a failed shard goes first, as every later shard waits for it */
+	private void failed(Shard s, String why, Deque<Shard> todo) throws IOException {
+		if (++s.tries >= MAX_TRIES)
+			throw new IOException("Shard " + s.id + " of " + s.path + " failed " + s.tries + " times: " + why);
+		retries++;
+		todo.addFirst(s);
+	}
+
+	/**********************************************/
+	/* NAME:	work                          */
+	/* INPUT:       tokenizer settings, the shard */
+	/*              lines and where to reply      */
+	/* DESCRIPTION: the worker side: prints each  */
+	/*              shard to its file and replies */
+	/*              with the counts by type, or   */
+	/*              the error                     */
+	/**********************************************/
+	static void work(Printtokens t, InputStream in, PrintStream reply) throws IOException {
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = r.readLine()) != null) {
+			String[] f = line.split("\t", 5);
+			try {
+				long[] c = print(t, Paths.get(f[4]), Long.parseLong(f[1]), Long.parseLong(f[2]), Paths.get(f[3]));
+				StringBuilder sb = new StringBuilder("done\t").append(f[0]).append('\t');
+				for (int i = 0; i < c.length; i++)
+					sb.append(i == 0 ? "" : ",").append(c[i]);
+				reply.print(sb.append('\n'));
+			} catch (IOException | RuntimeException e) {
+				reply.print("failed\t" + f[0] + "\t" + e.toString().replace('\n', ' ') + "\n");
+			}
+			reply.flush();
+		}
+	}
+
+	private static long[] print(Printtokens proto, Path path, long offset, long length, Path to) throws IOException {
+		long[] c = new long[Tokencounts.TYPES.length];
+		Printtokens t = proto.fork();
+		try (FileChannel ch = FileChannel.open(path);
+				PrintStream o = new PrintStream(new BufferedOutputStream(Files.newOutputStream(to), 1 << 16))) {
+			t.out = o;
+			ch.position(offset);
+			Tokencounts.print(t, new Rangestream(Channels.newInputStream(ch), length), c);
+			o.flush();
+			if (o.checkError())
+				throw new IOException("Can't write " + to);
+		}
+		return c;
+	}
+
+	/* the first length bytes of a stream */
+	private static final class Rangestream extends FilterInputStream {
+		private long left;
+
+		Rangestream(InputStream in, long length) {
+			super(in);
+			this.left = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				left--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, left));
+			if (n > 0)
+				left -= n;
+			return n;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	report                        */
+	/* DESCRIPTION: the tokens of every shard by  */
+	/*              type, then the shard counts   */
+	/**********************************************/
+	void report(PrintStream out) {
+		Tokencounts.report(counts, out);
+		out.print("shards," + shards + ",bytes " + bytes + ",retries " + retries + ".\n");
+	}
+}
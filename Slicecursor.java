@@ -0,0 +1,220 @@
+package main.printtokens;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/*****************************************************/
+/* NAME:        Slicecursor                          */
+/* DESCRIPTION: scans data that is already in memory */
+/*              (a CharSequence, a byte[] range or a */
+/*              ByteBuffer, heap or direct) in place */
+/*              with no Reader or scan buffer in     */
+/*              between. a token is a start and an   */
+/*              end index into that data, and its    */
+/*              text is a view of it. byte data is   */
+/*              read as ISO-8859-1, one char a byte, */
+/*              so indices stay byte indices; text in*/
+/*              another charset is decoded first and */
+/*              scanned as a CharSequence. not thread*/
+/*              safe; the data must not change while */
+/*              it is scanned                        */
+/*****************************************************/
+public final class Slicecursor {
+	private final Grammar g;
+	private final boolean skip_comments;
+	private final boolean skip_strings;
+	private final boolean[] shown;
+	private final CharSequence chars;	/* the data, or null */
+	private final ByteBuffer bytes;		/* the data, or null; index 0 is its first byte */
+	private final int size;
+	private final CharSequence window;	/* the current token, for token_type */
+	private int pos = 0;
+
+	private int start;
+	private int end;
+	private int type;
+
+	Slicecursor(Printtokens t, CharSequence data) {
+		this(t, data, null);
+	}
+
+	Slicecursor(Printtokens t, ByteBuffer data) {
+		this(t, null, data.slice());
+	}
+
+	private Slicecursor(Printtokens t, CharSequence chars, ByteBuffer bytes) {
+		this.g = t.grammar;
+		this.skip_comments = t.skip_comments;
+		this.skip_strings = t.skip_strings;
+		this.shown = t.shown;
+		this.chars = chars;
+		this.bytes = bytes;
+		this.size = chars != null ? chars.length() : bytes.remaining();
+		this.window = chars != null ? CharBuffer.wrap(chars) : new Latin1(bytes, 0, 0);
+	}
+
+	private int at(int i) {
+		if (i >= size)
+			return Charstream.EOF;
+		return chars != null ? chars.charAt(i) : bytes.get(i) & 0xff;
+	}
+
+	/**********************************************/
+	/* NAME:	next                          */
+	/* OUTPUT:      false at the end of the data; */
+	/*              types hidden by the engine's  */
+	/*              filter are passed over        */
+	/**********************************************/
+	public boolean next() {
+		while (scan()) {
+			if (shown == null || shown[type])
+				return true;
+		}
+		return false;
+	}
+
+	/* the same rules as Tokencursor.next */
+	private boolean scan() {
+		int i = pos;
+		int res = at(i++);
+		while (true) {
+			while (res == ' ' || res == '\n' || res == '\r')
+				res = at(i++);
+			if (res == Charstream.EOF) {
+				pos = size;
+				return false;
+			}
+			if (skip_comments && res == g.comment_char) {
+				do {
+					res = at(i++);
+				} while (res != Charstream.EOF && res != '\n' && res != '\r' && res != '\t');
+				if (res == Charstream.EOF) {
+					pos = size;
+					return false;
+				}
+				res = at(i++);
+				continue;
+			}
+			if (skip_strings && res == g.string_delim) {
+				int close = closing_delim(i);
+				if (close >= 0) {
+					i = close + 1;
+					res = at(i++);
+					continue;
+				}
+			}
+			break;
+		}
+		start = i - 1;
+		end = i;
+		if (!g.is_spec_symbol((char) res)) {
+			int id = res == g.string_delim ? 1 : res == g.comment_char ? 2 : 0;
+			res = at(i++);
+			while (!g.is_token_end(id, res))
+				res = at(i++);
+			end = i - 1;
+			if (res != Charstream.EOF) {
+				if (id == 0 && (g.is_spec_symbol((char) res) || res == g.comment_char))
+					i--;		/* belongs to the next token */
+				else if (id == 1 && res == g.string_delim)
+					end = i;
+			}
+		}
+		pos = Math.min(i, size);
+		type = g.token_type(view(start, end));
+		return true;
+	}
+
+	/* index of the delimiter closing a string whose body starts at i, or -1 */
+	private int closing_delim(int i) {
+		for (int c; (c = at(i)) != Charstream.EOF; i++) {
+			if (c == g.string_delim)
+				return i;
+			if (c == '\n' || c == '\r' || c == '\t')
+				return -1;
+		}
+		return -1;
+	}
+
+	private CharSequence view(int from, int to) {
+		if (chars != null) {
+			CharBuffer w = (CharBuffer) window;
+			w.clear();
+			w.limit(to).position(from);
+		} else {
+			Latin1 w = (Latin1) window;
+			w.from = from;
+			w.to = to;
+		}
+		return window;
+	}
+
+	/* index of the first char of the token in the data */
+	public int start() {
+		return start;
+	}
+
+	public int length() {
+		return end - start;
+	}
+
+	public int type() {
+		return type;
+	}
+
+	/**********************************************/
+	/* NAME:	text                          */
+	/* OUTPUT:      the token as a view of the    */
+	/*              data; nothing is copied       */
+	/**********************************************/
+	public CharSequence text() {
+		return chars != null ? CharBuffer.wrap(chars, start, end) : new Latin1(bytes, start, end);
+	}
+
+	/**********************************************/
+	/* NAME:	bytes                         */
+	/* OUTPUT:      the token as a view of the    */
+	/*              byte data                     */
+	/**********************************************/
+	public ByteBuffer bytes() {
+		if (bytes == null)
+			throw new IllegalStateException("not scanning bytes");
+		return bytes.slice(start, end - start);
+	}
+
+	/* bytes seen as ISO-8859-1 chars */
+	static final class Latin1 implements CharSequence {
+		private final ByteBuffer b;
+		int from;
+		int to;
+
+		Latin1(ByteBuffer b, int from, int to) {
+			this.b = b;
+			this.from = from;
+			this.to = to;
+		}
+
+		public int length() {
+			return to - from;
+		}
+
+		public char charAt(int i) {
+			if (i < 0 || i >= to - from)
+				throw new IndexOutOfBoundsException(i);
+			return (char) (b.get(from + i) & 0xff);
+		}
+
+		public CharSequence subSequence(int s, int e) {
+			if (s < 0 || e > to - from || s > e)
+				throw new IndexOutOfBoundsException();
+			return new Latin1(b, from + s, from + e);
+		}
+
+		public String toString() {
+			char[] c = new char[to - from];
+			for (int i = 0; i < c.length; i++)
+				c[i] = (char) (b.get(from + i) & 0xff);
+			return new String(c);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package main.printtokens;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/*****************************************************/
+/* NAME:        Stageprofile                         */
+/* DESCRIPTION: time and heap allocation of each     */
+/*              stage of the tokenizer on one input: */
+/*              scan (get_token), classify (type_of) */
+/*              and print (print_token). the passes  */
+/*              are cumulative, so a stage costs the */
+/*              difference between its pass and the  */
+/*              one before                           */
+/*****************************************************/
+final class Stageprofile {
+	static final String[] STAGES = {"scan", "classify", "print"};
+
+	private static final com.sun.management.ThreadMXBean THREADS = thread_bean();
+
+	final double[] mb_per_s = new double[STAGES.length];
+	final double[] bytes_per_token = new double[STAGES.length];
+	long tokens;
+	long size;
+
+	private static com.sun.management.ThreadMXBean thread_bean() {
+		java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		if (!(b instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean hb = (com.sun.management.ThreadMXBean) b;
+		if (!hb.isThreadAllocatedMemorySupported())
+			return null;
+		hb.setThreadAllocatedMemoryEnabled(true);
+		return hb;
+	}
+
+	/* heap bytes this thread has allocated so far, or -1 when the JVM can't tell */
+	static long allocated() {
+		return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/**********************************************/
+	/* NAME:	measure                       */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and rounds per stage          */
+	/* OUTPUT:      the best round of each pass   */
+	/**********************************************/
+	static Stageprofile measure(Printtokens t, byte[] data, int rounds) throws IOException {
+		Stageprofile p = new Stageprofile();
+		p.size = data.length;
+		Printtokens sink = t.fork();
+		sink.out = new PrintStream(OutputStream.nullOutputStream());
+		long[] time = new long[STAGES.length];
+		long[] alloc = new long[STAGES.length];
+		java.util.Arrays.fill(time, Long.MAX_VALUE);
+		java.util.Arrays.fill(alloc, Long.MAX_VALUE);
+		for (int r = 0; r < rounds; r++) {	/* interleaved, so every pass sees the same machine */
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				long a0 = allocated();
+				long t0 = System.nanoTime();
+				long n = pass(sink, data, stage);
+				long t1 = System.nanoTime();
+				long a1 = allocated();
+				time[stage] = Math.min(time[stage], t1 - t0);
+				alloc[stage] = Math.min(alloc[stage], a1 - a0);
+				p.tokens = n;
+			}
+		}
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			long dt = Math.max(1, time[stage] - (stage == 0 ? 0 : time[stage - 1]));
+			long da = Math.max(0, alloc[stage] - (stage == 0 ? 0 : alloc[stage - 1]));
+			p.mb_per_s[stage] = data.length / 1e6 / dt * 1e9;
+			p.bytes_per_token[stage] = THREADS == null ? Double.NaN : (double) da / Math.max(1, p.tokens);
+		}
+		return p;
+	}
+
+	private static long pass(Printtokens t, byte[] data, int stage) throws IOException {
+		long n = 0;
+		long types = 0;
+		try (Charstream cs = new Charstream(new ByteArrayInputStream(data))) {
+			String tok;
+			while ((tok = t.get_token(cs)) != null) {
+				n++;
+				if (stage >= 1)
+					types += t.type_of(tok);
+				if (stage >= 2)
+					t.print_token(tok);
+			}
+		}
+		Lexergen.sink = types;
+		return n;
+	}
+
+	/**********************************************/
+	/* NAME:	report                        */
+	/* DESCRIPTION: one line per stage,           */
+	/*   stage,NAME,X MB/s,Y B/token.             */
+	/**********************************************/
+	void report(PrintStream out) {
+		out.print("tokens," + tokens + ".\n");
+		for (int stage = 0; stage < STAGES.length; stage++)
+			out.print("stage," + STAGES[stage] + "," + String.format("%.1f MB/s,%.1f B/token", mb_per_s[stage], bytes_per_token[stage]) + ".\n");
+	}
+
+	public String toString() {
+		java.io.ByteArrayOutputStream b = new java.io.ByteArrayOutputStream();
+		report(new PrintStream(b, true));
+		return b.toString();
+	}
+}
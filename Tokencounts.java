@@ -0,0 +1,60 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/*****************************************************/
+/* NAME:        Tokencounts                          */
+/* DESCRIPTION: prints a stream's tokens while       */
+/*              counting them by type, and reports   */
+/*              the counts; shared by the modes that */
+/*              print a file a piece at a time       */
+/*              (--shard workers, --checkpoint and   */
+/*              --follow) and keep one running total */
+/*****************************************************/
+final class Tokencounts {
+	static final String[] TYPES = {"error", "keyword", "symbol", "identifier", "numeric", "string", "character", "comment"};
+	static final int[] SLOT = new int[Printtokens.char_constant + 1];	/* index in TYPES by type code */
+
+	static {
+		for (int i = 0; i < TYPES.length; i++)
+			SLOT[Printtokens.type_code(TYPES[i])] = i;
+	}
+
+	private Tokencounts() {
+	}
+
+	/**********************************************/
+	/* NAME:	print                         */
+	/* INPUT:       a tokenizer, its input and    */
+	/*              counts by TYPES               */
+	/* DESCRIPTION: prints every token to t.out,  */
+	/*              counting those it shows       */
+	/**********************************************/
+	static void print(Printtokens t, InputStream in, long[] counts) throws IOException {
+		Charstream cs = new Charstream(new InputStreamReader(in));
+		try {
+			String tok;
+			while ((tok = t.get_token(cs)) != null) {
+				int type = t.type_of(tok);
+				if (t.shown == null || t.shown[type])
+					counts[SLOT[type]]++;
+				t.print_token(tok);
+			}
+		} finally {
+			cs.release();
+		}
+	}
+
+	/* the total, then one line per type */
+	static void report(long[] counts, PrintStream out) {
+		long tokens = 0;
+		for (long n : counts)
+			tokens += n;
+		out.print("tokens," + tokens + ".\n");
+		for (int i = 0; i < TYPES.length; i++)
+			out.print(TYPES[i] + "," + counts[i] + ".\n");
+	}
+}
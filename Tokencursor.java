@@ -0,0 +1,94 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/*****************************************************/
+/* NAME:        Tokencursor                          */
+/* DESCRIPTION: get_token without the garbage. the   */
+/*              token text goes into a reused char   */
+/*              buffer and next() leaves its type,   */
+/*              source offset and length in fields,  */
+/*              so scanning allocates nothing per    */
+/*              token. follows the same rules as     */
+/*              Printtokens.get_token                */
+/*****************************************************/
+final class Tokencursor {
+	private final Grammar g;
+	private final boolean skip_comments;
+	private final boolean skip_strings;
+	private final Charstream cs;
+
+	char[] text = new char[256];	/* text[0..length) is the token */
+	private CharBuffer view = CharBuffer.wrap(text);	/* text as the grammar reads it */
+	int length;
+	int type;
+	long offset;			/* source offset of the first char */
+
+	Tokencursor(Printtokens t, Charstream cs) {
+		this.g = t.grammar;
+		this.skip_comments = t.skip_comments;
+		this.skip_strings = t.skip_strings;
+		this.cs = cs;
+	}
+
+	private void append(int c) {
+		if (length == text.length)
+			text = Arrays.copyOf(text, length * 2);
+		text[length++] = (char) c;
+	}
+
+	/**********************************************/
+	/* NAME:	next                          */
+	/* OUTPUT:      false at the end of the input */
+	/**********************************************/
+	boolean next() throws IOException {
+		int res = cs.get_char();
+		while (true) {
+			while (res == ' ' || res == '\n' || res == '\r')
+				res = cs.get_char();
+			if (res == Charstream.EOF)
+				return false;
+			if (skip_comments && res == g.comment_char) {
+				if (cs.skip_comment() == Charstream.EOF)
+					return false;
+				res = cs.get_char();
+				continue;
+			}
+			if (skip_strings && res == g.string_delim && cs.skip_string(g.string_delim)) {
+				res = cs.get_char();
+				continue;
+			}
+			break;
+		}
+		if (cs.tracking())
+			cs.mark_token();
+		offset = cs.token_start();	/* its bytes, not its chars, for byte sources */
+		length = 0;
+		append(res);
+		if (!g.is_spec_symbol((char) res)) {
+			int id = res == g.string_delim ? 1 : res == g.comment_char ? 2 : 0;
+			res = cs.get_char();
+			while (!g.is_token_end(id, res)) {
+				append(res);
+				res = cs.get_char();
+			}
+			if (res != Charstream.EOF) {
+				if (id == 0 && (g.is_spec_symbol((char) res) || res == g.comment_char))
+					cs.unget_char();	/* belongs to the next token */
+				else if (id == 1 && res == g.string_delim)
+					append(res);
+			}
+		}
+		if (view.array() != text)
+			view = CharBuffer.wrap(text);
+		view.limit(length);
+		type = g.token_type(view);
+		return true;
+	}
+
+	String token() {
+		return new String(text, 0, length);
+	}
+}
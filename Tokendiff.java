@@ -0,0 +1,215 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*****************************************************/
+/* NAME:        Tokendiff                            */
+/* DESCRIPTION: diff of two token streams. each      */
+/*              distinct token text gets an int id   */
+/*              from one shared dictionary, and the  */
+/*              linear space Myers algorithm runs on */
+/*              the id arrays, so no String is       */
+/*              compared. the common prefix and      */
+/*              suffix are stripped first, which is  */
+/*              all the work when the inputs differ  */
+/*              in a few places                      */
+/*****************************************************/
+final class Tokendiff {
+	private final Tokentable.Dictionary dict = new Tokentable.Dictionary();
+
+	/* one tokenized input */
+	static final class Side {
+		int[] ids = new int[1024];
+		long[] pos = new long[1024];	/* line << 32 | column */
+		int n = 0;
+
+		String position(int i) {
+			return i < n ? (pos[i] >>> 32) + ":" + (int) pos[i] : "eof";
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	read                          */
+	/* INPUT:       tokenizer settings and input  */
+	/* OUTPUT:      its token ids and positions;  */
+	/*              types hidden by the filter    */
+	/*              are left out                  */
+	/**********************************************/
+	Side read(Printtokens t, Charstream cs) throws IOException {
+		Side s = new Side();
+		cs.track_positions(null);
+		Tokencursor cur = new Tokencursor(t, cs);
+		while (cur.next()) {
+			if (t.shown != null && !t.shown[cur.type])
+				continue;
+			if (s.n == s.ids.length) {
+				s.ids = Arrays.copyOf(s.ids, s.n * 2);
+				s.pos = Arrays.copyOf(s.pos, s.n * 2);
+			}
+			s.ids[s.n] = dict.id_of(cur.text, cur.length);
+			s.pos[s.n] = cs.token_line << 32 | cs.token_col;
+			s.n++;
+		}
+		return s;
+	}
+
+	String text(int id) {
+		return dict.word(id);
+	}
+
+	/**********************************************/
+	/* NAME:	diff                          */
+	/* INPUT:       two id sequences              */
+	/* OUTPUT:      the changed ranges, each      */
+	/*              {a_from, a_to, b_from, b_to}, */
+	/*              in order                      */
+	/**********************************************/
+	static List<int[]> diff(int[] a, int na, int[] b, int nb) {
+		List<int[]> out = new ArrayList<>();
+		new Myers(a, b, out).compare(0, na, 0, nb);
+		List<int[]> merged = new ArrayList<>();
+		for (int[] h : out) {	/* a delete next to an insert is one change */
+			int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && last[1] == h[0] && last[3] == h[2]) {
+				last[1] = h[1];
+				last[3] = h[3];
+			} else {
+				merged.add(h);
+			}
+		}
+		return merged;
+	}
+
+	/* the recursive middle snake search over a[a0, a1) and b[b0, b1) */
+	private static final class Myers {
+		private final int[] a;
+		private final int[] b;
+		private final List<int[]> out;
+
+		Myers(int[] a, int[] b, List<int[]> out) {
+			this.a = a;
+			this.b = b;
+			this.out = out;
+		}
+
+		void compare(int a0, int a1, int b0, int b1) {
+			while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+				a0++;
+				b0++;
+			}
+			while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+				a1--;
+				b1--;
+			}
+			if (a0 == a1 || b0 == b1) {
+				if (a0 < a1 || b0 < b1)
+					out.add(new int[] {a0, a1, b0, b1});
+				return;
+			}
+			bisect(a0, a1, b0, b1);
+		}
+
+		private void bisect(int a0, int a1, int b0, int b1) {
+			int n = a1 - a0;
+			int m = b1 - b0;
+			int max_d = (n + m + 1) / 2;
+			int off = max_d;
+			int len = 2 * max_d + 2;
+			int[] v1 = new int[len];
+			int[] v2 = new int[len];
+			Arrays.fill(v1, -1);
+			Arrays.fill(v2, -1);
+			v1[off + 1] = 0;
+			v2[off + 1] = 0;
+			int delta = n - m;
+			boolean front = (delta & 1) != 0;	/* forward paths meet the reverse ones */
+			int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+			for (int d = 0; d < max_d; d++) {
+				for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+					int i = off + k1;
+					int x1 = k1 == -d || (k1 != d && v1[i - 1] < v1[i + 1]) ? v1[i + 1] : v1[i - 1] + 1;
+					int y1 = x1 - k1;
+					while (x1 < n && y1 < m && a[a0 + x1] == b[b0 + y1]) {
+						x1++;
+						y1++;
+					}
+					v1[i] = x1;
+					if (x1 > n) {
+						k1end += 2;
+					} else if (y1 > m) {
+						k1start += 2;
+					} else if (front) {
+						int j = off + delta - k1;
+						if (j >= 0 && j < len && v2[j] != -1 && x1 >= n - v2[j]) {
+							split(a0, a1, b0, b1, x1, y1);
+							return;
+						}
+					}
+				}
+				for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+					int i = off + k2;
+					int x2 = k2 == -d || (k2 != d && v2[i - 1] < v2[i + 1]) ? v2[i + 1] : v2[i - 1] + 1;
+					int y2 = x2 - k2;
+					while (x2 < n && y2 < m && a[a1 - 1 - x2] == b[b1 - 1 - y2]) {
+						x2++;
+						y2++;
+					}
+					v2[i] = x2;
+					if (x2 > n) {
+						k2end += 2;
+					} else if (y2 > m) {
+						k2start += 2;
+					} else if (!front) {
+						int j = off + delta - k2;
+						if (j >= 0 && j < len && v1[j] != -1) {
+							int x1 = v1[j];
+							int y1 = off + x1 - j;
+							if (x1 >= n - x2) {
+								split(a0, a1, b0, b1, x1, y1);
+								return;
+							}
+						}
+					}
+				}
+			}
+			out.add(new int[] {a0, a1, b0, b1});	/* nothing in common */
+		}
+
+		private void split(int a0, int a1, int b0, int b1, int x, int y) {
+			compare(a0, a0 + x, b0, b0 + y);
+			compare(a0 + x, a1, b0 + y, b1);
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print                         */
+	/* INPUT:       printer settings and both     */
+	/*              sides                         */
+	/* DESCRIPTION: one line per change,          */
+	/*   changed,POS_A,N,POS_B,M.                 */
+	/*              then the N removed tokens     */
+	/*              after "-" and the M added     */
+	/*              tokens after "+"              */
+	/* OUTPUT:      the number of changes         */
+	/**********************************************/
+	int print(Printtokens t, Side a, Side b) {
+		PrintStream out = t.out();
+		List<int[]> hunks = diff(a.ids, a.n, b.ids, b.n);
+		for (int[] h : hunks) {
+			out.print("changed," + a.position(h[0]) + "," + (h[1] - h[0]) + "," + b.position(h[2]) + "," + (h[3] - h[2]) + ".\n");
+			for (int i = h[0]; i < h[1]; i++) {
+				out.print("-");
+				t.print_token(text(a.ids[i]));
+			}
+			for (int i = h[2]; i < h[3]; i++) {
+				out.print("+");
+				t.print_token(text(b.ids[i]));
+			}
+		}
+		return hunks.size();
+	}
+}
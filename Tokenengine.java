@@ -0,0 +1,120 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.channels.ReadableByteChannel;
+
+/*****************************************************/
+/* NAME:        Tokenengine                          */
+/* DESCRIPTION: immutable tokenizer settings (the    */
+/*              grammar, its compiled scanner and    */
+/*              the type filter) that any number of  */
+/*              threads can share. all per-call      */
+/*              state lives in a Tokensession, which */
+/*              reads the input and writes the       */
+/*              output it is given and never touches */
+/*              System.in or System.out              */
+/*****************************************************/
+public final class Tokenengine {
+	public static final Tokenengine BUILTIN = new Tokenengine(new Printtokens());
+
+	private final Printtokens settings;	/* never handed out, only forked */
+
+	/**********************************************/
+	/* NAME:	Tokenengine                   */
+	/* INPUT:       a configured tokenizer; later */
+	/*              changes to it don't reach the */
+	/*              engine                        */
+	/**********************************************/
+	Tokenengine(Printtokens t) {
+		this.settings = t.fork();
+		this.settings.out = null;
+		if (t.shown != null)
+			this.settings.shown = t.shown.clone();
+	}
+
+	/**********************************************/
+	/* NAME:	of                            */
+	/* INPUT:       a grammar, whether to compile */
+	/*              a scanner for it, and the     */
+	/*              --only/--exclude type lists   */
+	/*              (either may be null)          */
+	/**********************************************/
+	public static Tokenengine of(Grammar g, boolean compiled, String only, String exclude) {
+		Printtokens t = new Printtokens();
+		t.grammar = g;
+		if (compiled)
+			t.lexer = Lexergen.compile(g);
+		if (only != null || exclude != null)
+			t.set_filter(only, exclude);
+		return new Tokenengine(t);
+	}
+
+	/**********************************************/
+	/* NAME:	open                          */
+	/* INPUT:       an input and the stream its   */
+	/*              tokens print to; neither may  */
+	/*              be null                       */
+	/* OUTPUT:      a session over them           */
+	/**********************************************/
+	public Tokensession open(Reader in, PrintStream out) {
+		check_output(out);
+		return new Tokensession(settings.fork(), new Charstream(in), out);
+	}
+
+	public Tokensession open(InputStream in, PrintStream out) {
+		check_output(out);
+		return new Tokensession(settings.fork(), new Charstream(in), out);
+	}
+
+	public Tokensession open(ReadableByteChannel in, PrintStream out) {
+		check_output(out);
+		return new Tokensession(settings.fork(), new Charstream(in), out);
+	}
+
+	/* before a Charstream takes pooled blocks; a null out would mean System.out further down */
+	private static void check_output(PrintStream out) {
+		if (out == null)
+			throw new NullPointerException("no output stream");
+	}
+
+	/**********************************************/
+	/* NAME:	cursor                        */
+	/* INPUT:       data already in memory        */
+	/* OUTPUT:      a cursor scanning it in place */
+	/**********************************************/
+	public Slicecursor cursor(CharSequence data) {
+		return new Slicecursor(settings, data);
+	}
+
+	public Slicecursor cursor(byte[] data, int off, int len) {
+		return new Slicecursor(settings, java.nio.ByteBuffer.wrap(data, off, len));
+	}
+
+	/* from the buffer's position to its limit; the buffer itself is not moved */
+	public Slicecursor cursor(java.nio.ByteBuffer data) {
+		return new Slicecursor(settings, data);
+	}
+
+	/**********************************************/
+	/* NAME:	tokenize                      */
+	/* INPUT:       an input and an output        */
+	/* OUTPUT:      the number of tokens read    */
+	/**********************************************/
+	public long tokenize(Reader in, PrintStream out) {
+		try (Tokensession s = open(in, out)) {
+			return s.run();
+		}
+	}
+
+	public long tokenize(InputStream in, PrintStream out) {
+		try (Tokensession s = open(in, out)) {
+			return s.run();
+		}
+	}
+
+	public long tokenize(ReadableByteChannel in, PrintStream out) {
+		try (Tokensession s = open(in, out)) {
+			return s.run();
+		}
+	}
+}
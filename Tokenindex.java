@@ -0,0 +1,191 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/*****************************************************/
+/* NAME:        Tokenindex                           */
+/* DESCRIPTION: sidecar token index of a file. holds */
+/*              a checkpoint (byte offset, token     */
+/*              ordinal, line) at the first line     */
+/*              start after every K tokens. the      */
+/*              lexer has no state across a newline, */
+/*              so a scan can resume at any of them  */
+/*****************************************************/
+final class Tokenindex {
+	static final int MAGIC = 0x50544958;	/* "PTIX" */
+	static final int VERSION = 1;
+	static final int DEFAULT_EVERY = 4096;
+	static final String SUFFIX = ".tokidx";
+
+	final int every;
+	long file_length;
+	long file_mtime;
+	long tokens;
+	private long[] offsets = new long[16];
+	private long[] ordinals = new long[16];
+	private long[] lines = new long[16];
+	private int count = 0;
+
+	Tokenindex(int every) {
+		if (every <= 0)
+			throw new IllegalArgumentException("every must be positive: " + every);
+		this.every = every;
+	}
+
+	static Path sidecar(Path file) {
+		return file.resolveSibling(file.getFileName() + SUFFIX);
+	}
+
+	int checkpoints() {
+		return count;
+	}
+
+	long offset(int k) {
+		return offsets[k];
+	}
+
+	long ordinal(int k) {
+		return ordinals[k];
+	}
+
+	long line(int k) {
+		return lines[k];
+	}
+
+	private void add(long offset, long ordinal, long line) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			ordinals = Arrays.copyOf(ordinals, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+		}
+		offsets[count] = offset;
+		ordinals[count] = ordinal;
+		lines[count] = line;
+		count++;
+	}
+
+	/**********************************************/
+	/* NAME:	build                         */
+	/* INPUT:       a tokenizer, a file and K     */
+	/* OUTPUT:      the index of the file         */
+	/**********************************************/
+	static Tokenindex build(Printtokens t, Path file, int every) throws IOException {
+		Tokenindex ix = new Tokenindex(every);
+		ix.file_length = Files.size(file);
+		ix.file_mtime = Files.getLastModifiedTime(file).toMillis();
+		ix.add(0, 0, 1);
+		try (Charstream cs = new Charstream(FileChannel.open(file))) {
+			cs.track_positions(null);
+			long ordinal = 0;
+			long last_line = 1;
+			while (t.get_token(cs) != null) {
+				if (cs.token_line != last_line) {	/* first token of a new line */
+					if (ordinal - ix.ordinals[ix.count - 1] >= every)
+						ix.add(cs.token_line_start, ordinal, cs.token_line);
+					last_line = cs.token_line;
+				}
+				ordinal++;
+			}
+			ix.tokens = ordinal;
+		}
+		return ix;
+	}
+
+	void write(Path out) throws IOException {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(out)))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(every);
+			dos.writeLong(file_length);
+			dos.writeLong(file_mtime);
+			dos.writeLong(tokens);
+			dos.writeInt(count);
+			for (int k = 0; k < count; k++) {
+				dos.writeLong(offsets[k]);
+				dos.writeLong(ordinals[k]);
+				dos.writeLong(lines[k]);
+			}
+		}
+	}
+
+	static Tokenindex read(Path in) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(in)))) {
+			if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+				throw new IOException(in + " is not a token index");
+			Tokenindex ix = new Tokenindex(dis.readInt());
+			ix.file_length = dis.readLong();
+			ix.file_mtime = dis.readLong();
+			ix.tokens = dis.readLong();
+			int n = dis.readInt();
+			for (int k = 0; k < n; k++)
+				ix.add(dis.readLong(), dis.readLong(), dis.readLong());
+			return ix;
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	is_current                    */
+	/* OUTPUT:      false when the file changed   */
+	/*              since the index was built     */
+	/**********************************************/
+	boolean is_current(Path file) throws IOException {
+		return Files.size(file) == file_length
+			&& Files.getLastModifiedTime(file).toMillis() == file_mtime;
+	}
+
+	/**********************************************/
+	/* NAME:	print_tokens                  */
+	/* INPUT:       tokens [from, to) of the file */
+	/* DESCRIPTION: t only prints, so a filter set */
+	/*              on it can't shift the ordinals */
+	/**********************************************/
+	void print_tokens(Printtokens t, Path file, long from, long to) throws IOException {
+		int k = find(ordinals, from);
+		Printtokens scan = t.unfiltered();
+		try (Charstream cs = open_at(file, k)) {
+			long ordinal = ordinals[k];
+			String tok;
+			while (ordinal < to && (tok = scan.get_token(cs)) != null) {
+				if (ordinal >= from)
+					t.print_token(tok);
+				ordinal++;
+			}
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	print_line                    */
+	/* INPUT:       the tokens on a 1-based line  */
+	/**********************************************/
+	void print_line(Printtokens t, Path file, long line) throws IOException {
+		int k = find(lines, line);
+		Printtokens scan = t.unfiltered();
+		try (Charstream cs = open_at(file, k)) {
+			cs.track_positions(null);
+			String tok;
+			while ((tok = scan.get_token(cs)) != null && cs.token_line <= line) {
+				if (cs.token_line == line)
+					t.print_token(tok);
+			}
+		}
+	}
+
+	/* decoded as main decodes; a checkpoint is a line start, so no character is cut */
+	private Charstream open_at(Path file, int k) throws IOException {
+		FileChannel ch = FileChannel.open(file);
+		ch.position(offsets[k]);
+		Charstream cs = new Charstream(ch);
+		cs.start_at(offsets[k], lines[k]);
+		return cs;
+	}
+
+	/* last checkpoint whose key is <= the wanted one */
+	private int find(long[] keys, long key) {
+		int k = Arrays.binarySearch(keys, 0, count, key);
+		return k >= 0 ? k : Math.max(-k - 2, 0);
+	}
+}
@@ -0,0 +1,56 @@
+package main.printtokens;
+
+import java.io.*;
+
+/*****************************************************/
+/* NAME:        Tokensession                         */
+/* DESCRIPTION: one tokenization run of a            */
+/*              Tokenengine. not thread safe; use    */
+/*              one per call. close() returns the    */
+/*              scan buffers to the shared pool and  */
+/*              leaves the caller's streams open     */
+/*****************************************************/
+public final class Tokensession implements Closeable {
+	private final Printtokens t;
+	private final Charstream cs;
+
+	Tokensession(Printtokens t, Charstream cs, PrintStream out) {
+		this.t = t;
+		this.cs = cs;
+		t.out = out;
+	}
+
+	/* the next token, or null at the end of the input */
+	public String next_token() {
+		return t.get_token(cs);
+	}
+
+	public int token_type(String tok) {
+		return t.type_of(tok);
+	}
+
+	public void print_token(String tok) {
+		t.print_token(tok);
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* OUTPUT:      the number of tokens read    */
+	/* DESCRIPTION: print every remaining token   */
+	/**********************************************/
+	public long run() {
+		long n = 0;
+		String tok = t.get_token(cs);
+		while (tok != null) {
+			t.print_token(tok);
+			n++;
+			tok = t.get_token(cs);
+		}
+		t.out().flush();
+		return n;
+	}
+
+	public void close() {
+		cs.release();
+	}
+}
@@ -0,0 +1,281 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************/
+/* NAME:        Tokensketch                          */
+/* DESCRIPTION: fixed-size summary of the identifier */
+/*              and keyword stream: a Count-Min      */
+/*              table with the current heaviest      */
+/*              words as candidates, and a           */
+/*              HyperLogLog distinct counter. memory */
+/*              does not grow with the input, and    */
+/*              two sketches of the same shape merge */
+/*              into the sketch of both inputs       */
+/*****************************************************/
+final class Tokensketch {
+	static final long DEFAULT_BUDGET = 1 << 20;	/* bytes */
+	static final int DEFAULT_TOP = 10;
+	static final int DEPTH = 4;			/* Count-Min rows */
+
+	private final int width;
+	private final long[][] cms;
+	private final byte[] hll;
+	private final int hll_bits;
+	private final int capacity;			/* candidates kept */
+	private final HashMap<String, Long> estimate = new HashMap<>();
+	private final TreeSet<String> by_estimate;	/* lightest candidate first */
+	long total = 0;					/* words added */
+
+	/**********************************************/
+	/* NAME:	Tokensketch                   */
+	/* INPUT:       Count-Min width, HyperLogLog  */
+	/*              index bits and how many heavy */
+	/*              hitters to keep               */
+	/**********************************************/
+	Tokensketch(int width, int hll_bits, int capacity) {
+		if (width < 1 || hll_bits < 4 || hll_bits > 30 || capacity < 1)
+			throw new IllegalArgumentException("Bad sketch shape");
+		this.width = width;
+		this.cms = new long[DEPTH][width];
+		this.hll_bits = hll_bits;
+		this.hll = new byte[1 << hll_bits];
+		this.capacity = capacity;
+		this.by_estimate = new TreeSet<>((a, b) -> {
+			int c = Long.compare(estimate.get(a), estimate.get(b));
+			return c != 0 ? c : a.compareTo(b);
+		});
+	}
+
+	/**********************************************/
+	/* NAME:	for_budget                    */
+	/* INPUT:       a memory budget in bytes and  */
+	/*              the top-K to be reported      */
+	/* OUTPUT:      a sketch splitting the budget */
+	/*              half and half between the     */
+	/*              two structures                */
+	/**********************************************/
+	static Tokensketch for_budget(long bytes, int k) {
+		int bits = 4;
+		while (bits < 30 && (2L << bits) <= bytes / 2)
+			bits++;
+		long width = bytes / 2 / (DEPTH * 8L);
+		return new Tokensketch((int) Math.max(16, Math.min(width, Integer.MAX_VALUE)), bits, 4 * k);
+	}
+
+	/* 64 bit hash: FNV-1a over the chars, then the murmur3 finalizer */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/* each row rehashes with its own seed, so the rows collide independently */
+	private int column(long h, int row) {
+		return (int) Long.remainderUnsigned(mix(h + (row + 1) * 0x9e3779b97f4a7c15L), width);
+	}
+
+	/**********************************************/
+	/* NAME:	add                           */
+	/* INPUT:       an identifier or keyword      */
+	/**********************************************/
+	void add(String word) {
+		long h = hash(word);
+		long est = Long.MAX_VALUE;
+		for (int r = 0; r < DEPTH; r++) {
+			long[] row = cms[r];
+			int c = column(h, r);
+			est = Math.min(est, ++row[c]);
+		}
+		int j = (int) (h >>> (64 - hll_bits));
+		int rank = Long.numberOfLeadingZeros(h << hll_bits | 1L << (hll_bits - 1)) + 1;
+		if (rank > hll[j])
+			hll[j] = (byte) rank;
+		total++;
+		offer(word, est);
+	}
+
+	/* keep word as a candidate if it is among the heaviest */
+	private void offer(String word, long est) {
+		if (estimate.containsKey(word)) {
+			by_estimate.remove(word);
+			estimate.put(word, est);
+			by_estimate.add(word);
+			return;
+		}
+		if (estimate.size() >= capacity) {
+			String light = by_estimate.first();
+			if (estimate.get(light) >= est)
+				return;
+			by_estimate.pollFirst();
+			estimate.remove(light);
+		}
+		estimate.put(word, est);
+		by_estimate.add(word);
+	}
+
+	long estimate(String word) {
+		long h = hash(word);
+		long est = Long.MAX_VALUE;
+		for (int r = 0; r < DEPTH; r++)
+			est = Math.min(est, cms[r][column(h, r)]);
+		return est;
+	}
+
+	/**********************************************/
+	/* NAME:	merge                         */
+	/* INPUT:       a sketch of the same shape    */
+	/* DESCRIPTION: this becomes the sketch of    */
+	/*              both inputs                   */
+	/**********************************************/
+	Tokensketch merge(Tokensketch o) {
+		if (o.width != width || o.hll_bits != hll_bits || o.capacity != capacity)
+			throw new IllegalArgumentException("Sketches of different shapes");
+		for (int r = 0; r < DEPTH; r++) {
+			for (int c = 0; c < width; c++)
+				cms[r][c] += o.cms[r][c];
+		}
+		for (int j = 0; j < hll.length; j++)
+			hll[j] = (byte) Math.max(hll[j], o.hll[j]);
+		total += o.total;
+		Set<String> words = new HashSet<>(estimate.keySet());
+		words.addAll(o.estimate.keySet());
+		by_estimate.clear();
+		estimate.clear();
+		for (String w : words)
+			offer(w, estimate(w));
+		return this;
+	}
+
+	/**********************************************/
+	/* NAME:	top                           */
+	/* OUTPUT:      the k heaviest candidates,    */
+	/*              heaviest first                */
+	/**********************************************/
+	List<String> top(int k) {
+		List<String> out = new ArrayList<>();
+		for (Iterator<String> it = by_estimate.descendingIterator(); it.hasNext() && out.size() < k; )
+			out.add(it.next());
+		return out;
+	}
+
+	/* Count-Min overcounts by at most this, with probability 1 - e^-DEPTH */
+	long count_error() {
+		return (long) Math.ceil(Math.E / width * total);
+	}
+
+	/**********************************************/
+	/* NAME:	distinct                      */
+	/* OUTPUT:      HyperLogLog estimate of the   */
+	/*              number of different words     */
+	/**********************************************/
+	long distinct() {
+		int m = hll.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : hll) {
+			sum += Math.scalb(1.0, -r);
+			if (r == 0)
+				zeros++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double e = alpha * m * m / sum;
+		if (e <= 2.5 * m && zeros > 0)
+			e = m * Math.log((double) m / zeros);	/* small range: linear counting */
+		return Math.round(e);
+	}
+
+	/* relative standard error of distinct() */
+	double distinct_error() {
+		return 1.04 / Math.sqrt(hll.length);
+	}
+
+	long bytes() {
+		return (long) DEPTH * width * 8 + hll.length;
+	}
+
+	/**********************************************/
+	/* NAME:	sketch                        */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and an empty sketch           */
+	/* DESCRIPTION: add every identifier and      */
+	/*              keyword of the input          */
+	/**********************************************/
+	static Tokensketch sketch(Printtokens t, Charstream cs, Tokensketch s) throws IOException {
+		String tok;
+		while ((tok = t.get_token(cs)) != null) {
+			int type = t.type_of(tok);
+			if (type == Printtokens.identifier || type == Printtokens.keyword)
+				s.add(tok);
+		}
+		return s;
+	}
+
+	/**********************************************/
+	/* NAME:	run                           */
+	/* INPUT:       tokenizer settings, a file or */
+	/*              directory, K, a budget and    */
+	/*              where to report               */
+	/* DESCRIPTION: each of t.threads workers     */
+	/*              keeps one sketch and feeds it */
+	/*              every file it takes, so no    */
+	/*              more than t.threads budgets   */
+	/*              are held; their sketches are  */
+	/*              merged and the top K and the  */
+	/*              distinct count printed        */
+	/**********************************************/
+	static void run(Printtokens t, Path path, int k, long budget, PrintStream out) throws IOException {
+		List<Path> inputs = Tokentable.inputs(path);
+		int workers = Math.max(1, Math.min(t.threads, inputs.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		AtomicInteger next = new AtomicInteger();
+		Tokensketch all = null;
+		try {
+			List<Callable<Tokensketch>> parts = new ArrayList<>();
+			for (int w = 0; w < workers; w++) {
+				parts.add(() -> {
+					Printtokens mine = t.fork();
+					Tokensketch s = for_budget(budget, k);
+					for (int i; (i = next.getAndIncrement()) < inputs.size(); ) {
+						try (Charstream cs = new Charstream(FileChannel.open(inputs.get(i)))) {
+							sketch(mine, cs, s);
+						}
+					}
+					return s;
+				});
+			}
+			for (Future<Tokensketch> f : pool.invokeAll(parts))
+				all = all == null ? f.get() : all.merge(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		long err = all.count_error();
+		for (String w : all.top(k))
+			out.print((t.type_of(w) == Printtokens.keyword ? "keyword" : "identifier") + ",\"" + w + "\"," + all.estimate(w) + ",+-" + err + ".\n");
+		out.print("distinct," + all.distinct() + ",+-" + String.format("%.1f%%", 100 * all.distinct_error()) + ".\n");
+		out.print("words," + all.total + ".\n");
+	}
+}
@@ -0,0 +1,221 @@
+package main.printtokens;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/*****************************************************/
+/* NAME:        Tokenstore                           */
+/* DESCRIPTION: token table kept outside the Java    */
+/*              heap in direct buffers: one 24 byte  */
+/*              record per token (source offset,     */
+/*              text position, length, type) and,    */
+/*              optionally, the token text as UTF-8; */
+/*              the length is of that UTF-8. the     */
+/*              heap only holds the list of chunks,  */
+/*              so its size does not grow with the   */
+/*              input. close() drops every chunk;    */
+/*              their memory goes back when the      */
+/*              collector finds them, not at once.   */
+/*              direct memory is capped by           */
+/*              -XX:MaxDirectMemorySize, which is    */
+/*              -Xmx unless set. at the cap the JVM  */
+/*              collects and retries before it gives */
+/*              up, so dropped chunks are reclaimed  */
+/*              first; a store that outgrows the cap */
+/*              fails with an IOException naming it  */
+/*****************************************************/
+final class Tokenstore implements Closeable {
+	static final int RECORD = 24;
+	static final int RECORDS_PER_CHUNK = 1 << 20;
+	static final int TEXT_CHUNK = 1 << 24;
+
+	/* bulk iteration callback; primitives only */
+	interface Visitor {
+		void token(long index, int type, long offset, int length);
+	}
+
+	private final boolean keep_text;
+	private ArrayList<ByteBuffer> records = new ArrayList<>();
+	private ArrayList<ByteBuffer> text = new ArrayList<>();
+	private long count = 0;
+	private long text_size = 0;
+	private byte[] utf8 = new byte[256];	/* the token being added, encoded */
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	Tokenstore(boolean keep_text) {
+		this.keep_text = keep_text;
+	}
+
+	/**********************************************/
+	/* NAME:	tokenize                      */
+	/* INPUT:       tokenizer settings, an input  */
+	/*              and whether to keep the bytes */
+	/* OUTPUT:      a store holding every token   */
+	/**********************************************/
+	static Tokenstore tokenize(Printtokens t, Charstream cs, boolean keep_text) throws IOException {
+		Tokenstore store = new Tokenstore(keep_text);
+		Tokencursor cur = new Tokencursor(t, cs);
+		try {
+			while (cur.next())
+				store.add(cur.type, cur.offset, cur.text, cur.length);
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+		return store;
+	}
+
+	private void check_open() {
+		if (records == null)
+			throw new IllegalStateException("token store is closed");
+	}
+
+	/**********************************************/
+	/* NAME:	add                           */
+	/* INPUT:       type, source offset and the   */
+	/*              first len chars of text       */
+	/**********************************************/
+	void add(int type, long offset, char[] chars, int len) throws IOException {
+		check_open();
+		len = encode(chars, len);
+		int slot = (int) (count % RECORDS_PER_CHUNK);
+		if (slot == 0)
+			records.add(allocate(RECORD * RECORDS_PER_CHUNK).order(ByteOrder.nativeOrder()));
+		ByteBuffer r = records.get(records.size() - 1);
+		int at = slot * RECORD;
+		r.putLong(at, offset);
+		r.putLong(at + 8, text_size);
+		r.putInt(at + 16, len);
+		r.put(at + 20, (byte) type);
+		for (int i = 0; keep_text && i < len; ) {	/* in runs, a chunk at a time */
+			int in_chunk = (int) (text_size % TEXT_CHUNK);
+			if (in_chunk == 0)
+				text.add(allocate(TEXT_CHUNK));
+			ByteBuffer b = text.get(text.size() - 1);
+			int n = Math.min(len - i, TEXT_CHUNK - in_chunk);
+			for (int k = 0; k < n; k++)
+				b.put(in_chunk + k, utf8[i + k]);
+			i += n;
+			text_size += n;
+		}
+		count++;
+	}
+
+	/* the UTF-8 of the first len chars into utf8; its length */
+	private int encode(char[] chars, int len) {
+		if (utf8.length < len)
+			utf8 = new byte[Math.max(len, utf8.length * 2)];
+		int i = 0;
+		while (i < len && chars[i] < 0x80) {
+			utf8[i] = (byte) chars[i];
+			i++;
+		}
+		if (i == len)
+			return len;
+		CharBuffer in = CharBuffer.wrap(chars, i, len - i);
+		ByteBuffer out = ByteBuffer.wrap(utf8, i, utf8.length - i);
+		encoder.reset();
+		while (encoder.encode(in, out, true).isOverflow()) {
+			utf8 = java.util.Arrays.copyOf(utf8, utf8.length * 2);
+			out = ByteBuffer.wrap(utf8, out.position(), utf8.length - out.position());
+		}
+		encoder.flush(out);
+		return out.position();
+	}
+
+	/* a new chunk; the direct memory cap is reported like any other failed read */
+	private ByteBuffer allocate(int size) throws IOException {
+		try {
+			return ByteBuffer.allocateDirect(size);
+		} catch (OutOfMemoryError e) {
+			throw new IOException("Out of direct memory after " + count + " tokens, " + offheap_bytes()
+				+ " bytes held; raise -XX:MaxDirectMemorySize", e);
+		}
+	}
+
+	long size() {
+		return count;
+	}
+
+	/* bytes held off the heap */
+	long offheap_bytes() {
+		check_open();
+		return (long) records.size() * RECORD * RECORDS_PER_CHUNK + (long) text.size() * TEXT_CHUNK;
+	}
+
+	private ByteBuffer chunk(long i) {
+		check_open();
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("token " + i + " of " + count);
+		return records.get((int) (i / RECORDS_PER_CHUNK));
+	}
+
+	int type(long i) {
+		return chunk(i).get((int) (i % RECORDS_PER_CHUNK) * RECORD + 20);
+	}
+
+	long offset(long i) {
+		return chunk(i).getLong((int) (i % RECORDS_PER_CHUNK) * RECORD);
+	}
+
+	int length(long i) {
+		return chunk(i).getInt((int) (i % RECORDS_PER_CHUNK) * RECORD + 16);
+	}
+
+	/**********************************************/
+	/* NAME:	copy_text                     */
+	/* INPUT:       a token index and a buffer at */
+	/*              least length(i) long          */
+	/* OUTPUT:      the number of bytes of its    */
+	/*              UTF-8 copied                  */
+	/**********************************************/
+	int copy_text(long i, byte[] dst) {
+		if (!keep_text)
+			throw new IllegalStateException("token store was built without text");
+		ByteBuffer r = chunk(i);
+		int at = (int) (i % RECORDS_PER_CHUNK) * RECORD;
+		long pos = r.getLong(at + 8);
+		int len = r.getInt(at + 16);
+		for (int k = 0; k < len; k++, pos++)
+			dst[k] = text.get((int) (pos / TEXT_CHUNK)).get((int) (pos % TEXT_CHUNK));
+		return len;
+	}
+
+	/* the text of token i */
+	String text(long i) {
+		byte[] b = new byte[length(i)];
+		return new String(b, 0, copy_text(i, b), StandardCharsets.UTF_8);
+	}
+
+	/**********************************************/
+	/* NAME:	for_each                      */
+	/* INPUT:       a visitor called for every    */
+	/*              token, in order               */
+	/**********************************************/
+	void for_each(Visitor v) {
+		check_open();
+		long i = 0;
+		for (ByteBuffer r : records) {
+			int n = (int) Math.min(RECORDS_PER_CHUNK, count - i);
+			for (int slot = 0; slot < n; slot++, i++) {
+				int at = slot * RECORD;
+				v.token(i, r.get(at + 20), r.getLong(at), r.getInt(at + 16));
+			}
+		}
+	}
+
+	/* the chunks become unreachable; their native memory is freed when they are collected */
+	public void close() {
+		records = null;
+		text = null;
+	}
+}
@@ -0,0 +1,374 @@
+package main.printtokens;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/*****************************************************/
+/* NAME:        Tokentable                           */
+/* DESCRIPTION: columnar result of tokenizing a set  */
+/*              of files: a byte column of type      */
+/*              codes, a long column packing offset  */
+/*              and length, the file of each row and */
+/*              a dictionary id for identifiers and  */
+/*              keywords. queries are plain loops    */
+/*              over the primitive columns and can   */
+/*              be split across a pool of their own  */
+/*              threads                              */
+/*****************************************************/
+final class Tokentable {
+	static final int LEN_BITS = 24;
+	static final int LEN_MAX = (1 << LEN_BITS) - 1;	/* longer tokens go to long_lengths */
+	static final int PARALLEL_MIN = 1 << 16;		/* rows per parallel slice */
+
+	byte[] types = new byte[1024];
+	long[] spans = new long[1024];		/* offset << LEN_BITS | length */
+	int[] files = new int[1024];
+	int[] ids = new int[1024];		/* dictionary id, or -1 */
+	int rows = 0;
+	final List<String> file_names = new ArrayList<>();
+	final List<Path> paths = new ArrayList<>();		/* set by build, to locate rows in */
+	private final List<Lineindex> line_indexes = new ArrayList<>();
+	final Dictionary dict = new Dictionary();
+	private final Map<Integer, Integer> long_lengths = new HashMap<>();
+
+	/**********************************************/
+	/* NAME:	build                         */
+	/* INPUT:       tokenizer settings and a file */
+	/*              or a directory of files       */
+	/* OUTPUT:      the table of all their tokens */
+	/**********************************************/
+	static Tokentable build(Printtokens t, Path path) throws IOException {
+		Tokentable table = new Tokentable();
+		for (Path p : inputs(path)) {
+			String name = Files.isDirectory(path) ? path.relativize(p).toString() : p.toString();
+			try (Charstream cs = new Charstream(FileChannel.open(p))) {
+				table.add_file(name, t, cs);
+				table.paths.add(p);
+			}
+		}
+		return table;
+	}
+
+	/* path itself, or every regular file under it in sorted order */
+	static List<Path> inputs(Path path) throws IOException {
+		List<Path> inputs = new ArrayList<>();
+		if (Files.isDirectory(path)) {
+			try (java.util.stream.Stream<Path> s = Files.walk(path)) {
+				s.filter(Files::isRegularFile).sorted().forEach(inputs::add);
+			}
+		} else {
+			inputs.add(path);
+		}
+		return inputs;
+	}
+
+	/**********************************************/
+	/* NAME:	add_file                      */
+	/* INPUT:       a file name, tokenizer        */
+	/*              settings and the file input   */
+	/**********************************************/
+	void add_file(String name, Printtokens t, Charstream cs) throws IOException {
+		int file = file_names.size();
+		file_names.add(name);
+		Lineindex lines = new Lineindex();
+		line_indexes.add(lines);
+		cs.track_positions(lines);
+		Tokencursor cur = new Tokencursor(t, cs);
+		while (cur.next()) {
+			int id = -1;
+			if (cur.type == Printtokens.identifier || cur.type == Printtokens.keyword)
+				id = dict.id_of(cur.text, cur.length);
+			add(cur.type, cur.offset, cur.length, file, id);
+		}
+	}
+
+	void add(int type, long offset, int length, int file, int id) {
+		if (rows == types.length) {
+			int cap = rows * 2;
+			types = Arrays.copyOf(types, cap);
+			spans = Arrays.copyOf(spans, cap);
+			files = Arrays.copyOf(files, cap);
+			ids = Arrays.copyOf(ids, cap);
+		}
+		if (length >= LEN_MAX)
+			long_lengths.put(rows, length);
+		types[rows] = (byte) type;
+		spans[rows] = offset << LEN_BITS | Math.min(length, LEN_MAX);
+		files[rows] = file;
+		ids[rows] = id;
+		rows++;
+	}
+
+	/**********************************************/
+	/* NAME:	locate                        */
+	/* INPUT:       a row and its file, open      */
+	/* OUTPUT:      {line, column} of its token   */
+	/**********************************************/
+	long[] locate(int row, FileChannel ch) throws IOException {
+		return line_indexes.get(files[row]).locate(offset(row), ch);
+	}
+
+	long offset(int row) {
+		return spans[row] >>> LEN_BITS;
+	}
+
+	int length(int row) {
+		int len = (int) (spans[row] & LEN_MAX);
+		return len == LEN_MAX ? long_lengths.get(row) : len;
+	}
+
+	/* row slices for a query; one slice for one thread */
+	private int slices(int threads) {
+		if (threads <= 1 || rows < 2 * PARALLEL_MIN)
+			return 1;
+		return Math.min(rows / PARALLEL_MIN, threads * 4);
+	}
+
+	/* runs a query's parallel stream on threads workers, not the common pool */
+	private static <T> T on_pool(int threads, Supplier<T> query) {
+		if (threads <= 1)
+			return query.get();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.submit(query::get).join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private int slice_start(int s, int n) {
+		return (int) ((long) rows * s / n);
+	}
+
+	/**********************************************/
+	/* NAME:	count                         */
+	/* OUTPUT:      rows of the given type        */
+	/**********************************************/
+	long count(int type, int threads) {
+		int n = slices(threads);
+		byte want = (byte) type;
+		return on_pool(threads, () -> IntStream.range(0, n).parallel().mapToLong(s -> {
+			long c = 0;
+			for (int i = slice_start(s, n), end = slice_start(s + 1, n); i < end; i++) {
+				if (types[i] == want)
+					c++;
+			}
+			return c;
+		}).sum());
+	}
+
+	/**********************************************/
+	/* NAME:	count_by_file                 */
+	/* OUTPUT:      rows of the type in each file */
+	/**********************************************/
+	long[] count_by_file(int type, int threads) {
+		int n = slices(threads);
+		int nfiles = file_names.size();
+		byte want = (byte) type;
+		return on_pool(threads, () -> IntStream.range(0, n).parallel().mapToObj(s -> {
+			long[] c = new long[nfiles];
+			for (int i = slice_start(s, n), end = slice_start(s + 1, n); i < end; i++) {
+				if (types[i] == want)
+					c[files[i]]++;
+			}
+			return c;
+		}).reduce(new long[nfiles], Tokentable::sum_into));
+	}
+
+	private static long[] sum_into(long[] a, long[] b) {
+		long[] c = new long[a.length];
+		for (int i = 0; i < a.length; i++)
+			c[i] = a[i] + b[i];
+		return c;
+	}
+
+	/**********************************************/
+	/* NAME:	longer_than                   */
+	/* OUTPUT:      rows of the type whose text   */
+	/*              is longer than min chars      */
+	/**********************************************/
+	int[] longer_than(int type, int min) {
+		int[] out = new int[16];
+		int n = 0;
+		byte want = (byte) type;
+		for (int i = 0; i < rows; i++) {
+			if (types[i] == want && length(i) > min) {
+				if (n == out.length)
+					out = Arrays.copyOf(out, n * 2);
+				out[n++] = i;
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/**********************************************/
+	/* NAME:	top                           */
+	/* INPUT:       identifier or keyword, and k  */
+	/* OUTPUT:      the k most frequent words of  */
+	/*              that type with their counts,  */
+	/*              most frequent first           */
+	/**********************************************/
+	List<Map.Entry<String, Long>> top(int type, int k, int threads) {
+		int n = slices(threads);
+		if (type != Printtokens.identifier && type != Printtokens.keyword)
+			throw new IllegalArgumentException("top needs identifier or keyword");
+		int words = dict.size();
+		byte want = (byte) type;
+		long[] counts = on_pool(threads, () -> IntStream.range(0, n).parallel().mapToObj(s -> {
+			long[] c = new long[words];
+			for (int i = slice_start(s, n), end = slice_start(s + 1, n); i < end; i++) {
+				if (types[i] == want)
+					c[ids[i]]++;
+			}
+			return c;
+		}).reduce(new long[words], Tokentable::sum_into));
+		PriorityQueue<Integer> heap = new PriorityQueue<>((a, b) ->
+			counts[a] != counts[b] ? Long.compare(counts[a], counts[b]) : Integer.compare(b, a));
+		for (int id = 0; id < words; id++) {
+			if (counts[id] == 0)
+				continue;
+			heap.add(id);
+			if (heap.size() > k)
+				heap.poll();
+		}
+		List<Map.Entry<String, Long>> out = new ArrayList<>();
+		while (!heap.isEmpty()) {
+			int id = heap.poll();
+			out.add(new AbstractMap.SimpleEntry<>(dict.word(id), counts[id]));
+		}
+		Collections.reverse(out);
+		return out;
+	}
+
+	/**********************************************/
+	/* NAME:	query                         */
+	/* INPUT:       a query, where to print and   */
+	/*              how many threads to scan with */
+	/* DESCRIPTION: one of                        */
+	/*   count:TYPE       TYPE,n.                 */
+	/*   per-file:TYPE    file,"name",n.          */
+	/*   top:TYPE:K       TYPE,"word",n.          */
+	/*   longer:TYPE:N    file,"name",offset,len, */
+	/*                    line:column.            */
+	/**********************************************/
+	void query(String spec, PrintStream out, int threads) throws IOException {
+		String[] f = spec.split(":");
+		if (f.length < 2)
+			throw new IllegalArgumentException("Bad query " + spec);
+		int type = Printtokens.type_code(f[1]);
+		switch (f[0] + "/" + f.length) {
+		case "count/2":
+			out.print(f[1] + "," + count(type, threads) + ".\n");
+			break;
+		case "per-file/2":
+			long[] c = count_by_file(type, threads);
+			for (int i = 0; i < c.length; i++)
+				out.print("file,\"" + file_names.get(i) + "\"," + c[i] + ".\n");
+			break;
+		case "top/3":
+			for (Map.Entry<String, Long> e : top(type, Integer.parseInt(f[2]), threads))
+				out.print(f[1] + ",\"" + e.getKey() + "\"," + e.getValue() + ".\n");
+			break;
+		case "longer/3":
+			FileChannel ch = null;
+			int open = -1;
+			try {
+				for (int row : longer_than(type, Integer.parseInt(f[2]))) {
+					if (files[row] != open) {	/* rows come file by file */
+						if (ch != null)
+							ch.close();
+						open = files[row];
+						ch = FileChannel.open(paths.get(open));
+					}
+					long[] at = locate(row, ch);
+					out.print("file,\"" + file_names.get(open) + "\"," + offset(row) + "," + length(row)
+						+ "," + at[0] + ":" + at[1] + ".\n");
+				}
+			} finally {
+				if (ch != null)
+					ch.close();
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Bad query " + spec);
+		}
+	}
+
+	/*****************************************************/
+	/* NAME:        Dictionary                           */
+	/* DESCRIPTION: open addressing map from token text  */
+	/*              to a dense id; the words are kept in */
+	/*              one char pool, so looking a word up  */
+	/*              makes no String                      */
+	/*****************************************************/
+	static final class Dictionary {
+		private int[] slots = new int[1024];	/* id + 1, 0 is empty */
+		private char[] pool = new char[8192];
+		private int pool_size = 0;
+		private int[] starts = new int[256];
+		private int[] lengths = new int[256];
+		private int[] hashes = new int[256];
+		private int size = 0;
+
+		int size() {
+			return size;
+		}
+
+		String word(int id) {
+			return new String(pool, starts[id], lengths[id]);
+		}
+
+		int id_of(char[] a, int len) {
+			int h = 0;
+			for (int i = 0; i < len; i++)
+				h = 31 * h + a[i];
+			int mask = slots.length - 1;
+			for (int s = h & mask; ; s = (s + 1) & mask) {
+				int id = slots[s] - 1;
+				if (id < 0)
+					return insert(s, a, len, h);
+				if (hashes[id] == h && lengths[id] == len
+						&& Arrays.equals(pool, starts[id], starts[id] + len, a, 0, len))
+					return id;
+			}
+		}
+
+		private int insert(int slot, char[] a, int len, int h) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+			}
+			while (pool_size + len > pool.length)
+				pool = Arrays.copyOf(pool, pool.length * 2);
+			System.arraycopy(a, 0, pool, pool_size, len);
+			starts[size] = pool_size;
+			lengths[size] = len;
+			hashes[size] = h;
+			pool_size += len;
+			slots[slot] = size + 1;
+			size++;
+			if (size * 2 > slots.length)
+				rehash();
+			return size - 1;
+		}
+
+		private void rehash() {
+			slots = new int[slots.length * 2];
+			int mask = slots.length - 1;
+			for (int id = 0; id < size; id++) {
+				int s = hashes[id] & mask;
+				while (slots[s] != 0)
+					s = (s + 1) & mask;
+				slots[s] = id + 1;
+			}
+		}
+	}
+}
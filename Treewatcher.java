@@ -0,0 +1,260 @@
+package main.printtokens;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/*****************************************************/
+/* NAME:        Treewatcher                          */
+/* DESCRIPTION: keeps a mirror directory holding the */
+/*              print_token output of every file in  */
+/*              a source tree. after one bulk pass   */
+/*              only created or modified files are   */
+/*              tokenized again, once the file has   */
+/*              been quiet for the debounce delay    */
+/*****************************************************/
+final class Treewatcher implements Closeable {
+	static final long DEBOUNCE_MS = 200;
+	static final String SUFFIX = ".tokens";
+
+	private final Printtokens proto;
+	private final Path root;
+	private final Path mirror;
+	private final long debounce_ms;
+	private final WatchService ws;
+	private final ExecutorService pool;
+	private final ScheduledExecutorService timer;
+	private final ConcurrentHashMap<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, Object> locks = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, long[]> stats = new ConcurrentHashMap<>();	/* {tokens, errors} */
+	final AtomicLong total_tokens = new AtomicLong();
+	final AtomicLong total_errors = new AtomicLong();
+	final AtomicLong runs = new AtomicLong();
+	PrintStream log;		/* one line per tokenized file, or null */
+
+	Treewatcher(Printtokens proto, Path root, Path mirror, long debounce_ms) throws IOException {
+		this.proto = proto;
+		this.root = root.toAbsolutePath().normalize();
+		this.mirror = mirror.toAbsolutePath().normalize();
+		this.debounce_ms = debounce_ms;
+		this.ws = root.getFileSystem().newWatchService();
+		int n = proto.threads;
+		this.pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(n * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/**********************************************/
+	/* NAME:	bulk_pass                     */
+	/* DESCRIPTION: register every directory and  */
+	/*              tokenize every file once      */
+	/**********************************************/
+	void bulk_pass() throws IOException {
+		List<Callable<Object>> files = new ArrayList<>();
+		scan(root, files);
+		try {
+			pool.invokeAll(files);	/* back when every mirror file is written */
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scan(Path dir) throws IOException {
+		scan(dir, null);
+	}
+
+	/* registers the directories under dir; its files are tokenized now, or added to into */
+	private void scan(Path dir, List<Callable<Object>> into) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				if (d.startsWith(mirror))
+					return FileVisitResult.SKIP_SUBTREE;
+				dirs.put(d.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+				if (!attrs.isRegularFile())
+					return FileVisitResult.CONTINUE;
+				if (into != null)
+					into.add(Executors.callable(() -> tokenize(f)));
+				else
+					pool.execute(() -> tokenize(f));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**********************************************/
+	/* NAME:	watch                         */
+	/* DESCRIPTION: handle change events until    */
+	/*              the watcher is closed         */
+	/**********************************************/
+	void watch() throws IOException {
+		while (true) {
+			WatchKey key;
+			try {
+				key = ws.take();
+			} catch (ClosedWatchServiceException | InterruptedException e) {
+				return;
+			}
+			Path dir = dirs.get(key);
+			for (WatchEvent<?> ev : key.pollEvents()) {
+				if (ev.kind() == OVERFLOW) {	/* events were lost, rescan */
+					scan(root);
+					continue;
+				}
+				if (dir == null)
+					continue;
+				Path p = dir.resolve((Path) ev.context());
+				if (p.startsWith(mirror))
+					continue;
+				if (ev.kind() == ENTRY_DELETE)
+					remove(p);
+				else if (Files.isDirectory(p))
+					scan(p);
+				else
+					schedule(p);
+			}
+			if (!key.reset())
+				dirs.remove(key);
+		}
+	}
+
+	/* (re)start the quiet period of a file */
+	private void schedule(Path p) {
+		pending.compute(p, (k, old) -> {
+			if (old != null)
+				old.cancel(false);
+			ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+			self[0] = timer.schedule(() -> {
+				pool.execute(() -> tokenize(k));
+				/* only this one: a newer one stays. under k's lock, self[0] is set */
+				pending.computeIfPresent(k, (kk, f) -> f == self[0] ? null : f);
+			}, debounce_ms, TimeUnit.MILLISECONDS);
+			return self[0];
+		});
+	}
+
+	Path mirror_of(Path src) {
+		return mirror.resolve(root.relativize(src) + SUFFIX);
+	}
+
+	long[] stats_of(Path src) {
+		return stats.get(src.toAbsolutePath().normalize());
+	}
+
+	/**********************************************/
+	/* NAME:	tokenize                      */
+	/* INPUT:       a source file                 */
+	/* DESCRIPTION: rewrite its mirror file and   */
+	/*              swap its counts into the      */
+	/*              running totals                */
+	/**********************************************/
+	private void tokenize(Path src) {
+		synchronized (locks.computeIfAbsent(src, k -> new Object())) {
+			if (!Files.isRegularFile(src))
+				return;
+			Path dst = mirror_of(src);
+			long tokens = 0;
+			long errors = 0;
+			try {
+				Files.createDirectories(dst.getParent());
+				Path tmp = Files.createTempFile(dst.getParent(), ".tmp", SUFFIX);
+				boolean moved = false;
+				try {
+					try (PrintStream ps = new PrintStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+					     Charstream cs = new Charstream(new InputStreamReader(Files.newInputStream(src)))) {
+						Printtokens t = proto.fork();
+						t.out = ps;
+						String tok = t.get_token(cs);
+						while (tok != null) {
+							t.print_token(tok);
+							tokens++;
+							if (t.type_of(tok) == Printtokens.error)
+								errors++;
+							tok = t.get_token(cs);
+						}
+					}
+					Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					moved = true;
+				} finally {
+					if (!moved)
+						Files.deleteIfExists(tmp);	/* no half-written file left in the mirror */
+				}
+			} catch (IOException e) {
+				if (log != null)
+					log.print("error,\"" + src + "\"," + e + ".\n");
+				return;
+			}
+			long[] old = stats.put(src, new long[] { tokens, errors });
+			total_tokens.addAndGet(tokens - (old == null ? 0 : old[0]));
+			total_errors.addAndGet(errors - (old == null ? 0 : old[1]));
+			runs.incrementAndGet();
+			if (log != null)
+				log.print("tokenized,\"" + root.relativize(src) + "\"," + tokens + ".\n");
+		}
+	}
+
+	/**********************************************/
+	/* NAME:	remove                        */
+	/* INPUT:       a deleted or moved path       */
+	/* DESCRIPTION: drop the counts and mirror    */
+	/*              files of the file, or of      */
+	/*              every file that was under the */
+	/*              directory                     */
+	/**********************************************/
+	private void remove(Path p) throws IOException {
+		if (stats.containsKey(p)) {	/* a file, the usual case */
+			forget(p);
+			return;
+		}
+		for (Path q : pending.keySet()) {
+			if (q.startsWith(p))
+				forget(q);
+		}
+		for (Path q : stats.keySet()) {
+			if (q.startsWith(p))
+				forget(q);
+		}
+		forget(p);
+		Path dir = mirror.resolve(root.relativize(p));
+		if (!Files.isDirectory(dir))
+			return;
+		try (java.util.stream.Stream<Path> s = Files.walk(dir)) {	/* deepest first */
+			for (Path q : (Iterable<Path>) s.sorted(java.util.Comparator.reverseOrder())::iterator)
+				Files.deleteIfExists(q);
+		}
+	}
+
+	/* one file's pending run, counts and mirror file */
+	private void forget(Path p) throws IOException {
+		ScheduledFuture<?> f = pending.remove(p);
+		if (f != null)
+			f.cancel(false);
+		synchronized (locks.computeIfAbsent(p, k -> new Object())) {
+			long[] old = stats.remove(p);
+			if (old != null) {
+				total_tokens.addAndGet(-old[0]);
+				total_errors.addAndGet(-old[1]);
+			}
+			Files.deleteIfExists(mirror_of(p));
+		}
+		locks.remove(p);
+	}
+
+	public void close() throws IOException {
+		timer.shutdownNow();
+		pool.shutdown();
+		ws.close();
+	}
+}
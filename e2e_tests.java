@@ -319,4 +319,238 @@ public class e2e_tests {
         assertTrue(output.contains("error,\"#invalid\"."));
         assertTrue(output.contains("error,\"@symbol\"."));
     }
+    @Test
+    void testMainWithPositions() throws IOException {
+        File testFile = createTempFile("and\n  @bad (");
+        
+        String[] args = {"--positions", testFile.getAbsolutePath()};
+        Printtokens.main(args);
+        
+        String output = outputStream.toString();
+        assertTrue(output.contains("1:1 keyword,\"and\"."));
+        assertTrue(output.contains("2:3 error,\"@bad\"."));
+        assertTrue(output.contains("2:8 lparen."));
+    }
+
+    @Test
+    void testMainBuildIndexAndQuery() throws IOException {
+        File testFile = createTempFile("and x\nor y\nif z\n");
+        new File(testFile.getAbsolutePath() + ".tokidx").deleteOnExit();
+        
+        Printtokens.main(new String[] {"--build-index=1", testFile.getAbsolutePath()});
+        assertTrue(outputStream.toString().contains("indexed 6 tokens, 3 checkpoints"));
+        
+        outputStream.reset();
+        Printtokens.main(new String[] {"--line=2", testFile.getAbsolutePath()});
+        assertEquals("keyword,\"or\".\nidentifier,\"y\".\n", outputStream.toString());
+        
+        outputStream.reset();
+        Printtokens.main(new String[] {"--tokens=3-5", testFile.getAbsolutePath()});
+        assertEquals("identifier,\"y\".\nkeyword,\"if\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testMainWithGzipFile() throws IOException {
+        File gz = File.createTempFile("test", ".txt.gz");
+        gz.deleteOnExit();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append("(x").append(i).append(")\n");
+        try (OutputStream os = new java.util.zip.GZIPOutputStream(new FileOutputStream(gz))) {
+            os.write(sb.toString().getBytes());
+        }
+        
+        Printtokens.main(new String[] {gz.getAbsolutePath()});
+        
+        String output = outputStream.toString();
+        assertTrue(output.startsWith("lparen.\nidentifier,\"x0\".\nrparen.\n"));
+        assertTrue(output.endsWith("identifier,\"x19999\".\nrparen.\n"));
+    }
+    
+    @Test
+    void testMainWithZipFileKeepsEntryOrder() throws IOException {
+        File zip = File.createTempFile("test", ".zip");
+        zip.deleteOnExit();
+        try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new FileOutputStream(zip))) {
+            for (int i = 0; i < 12; i++) {
+                zos.putNextEntry(new java.util.zip.ZipEntry("f" + i + ".txt"));
+                zos.write(("id" + i + " " + i + "\n").getBytes());
+                zos.closeEntry();
+            }
+        }
+        
+        Printtokens.main(new String[] {"--threads=3", zip.getAbsolutePath()});
+        
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            expected.append("file,\"f" + i + ".txt\".\nidentifier,\"id" + i + "\".\nnumeric," + i + ".\n");
+        }
+        assertEquals(expected.toString(), outputStream.toString());
+    }
+
+    @Test
+    void testMainWithExcludeFilter() throws IOException {
+        File testFile = createTempFile("and (x) \"s\" ;comment\n#a 12");
+        
+        Printtokens.main(new String[] {"--exclude=comment,string,symbol", testFile.getAbsolutePath()});
+        
+        assertEquals("keyword,\"and\".\nidentifier,\"x\".\ncharacter,\"a\".\nnumeric,12.\n", outputStream.toString());
+    }
+
+    @Test
+    void testMainWithGrammarFile() throws IOException {
+        File spec = createTempFile("symbol < langle\nsymbol > rangle\nkeyword let\ncomment !\nstring \"\nchar #\n");
+        File testFile = createTempFile("let <a> !note\nand");
+        
+        Printtokens.main(new String[] {"--grammar=" + spec.getAbsolutePath(), testFile.getAbsolutePath()});
+        
+        assertEquals("keyword,\"let\".\nlangle.\nidentifier,\"a\".\nrangle.\ncomment,\"!note\".\nidentifier,\"and\".\n",
+            outputStream.toString());
+    }
+
+    @Test
+    void testMainWithCompiledEngine() throws IOException {
+        File testFile = createTempFile("and (x) ;c\n#a");
+        
+        Printtokens.main(new String[] {"--engine=compiled", testFile.getAbsolutePath()});
+        
+        assertEquals("keyword,\"and\".\nlparen.\nidentifier,\"x\".\nrparen.\ncomment,\";c\".\ncharacter,\"a\".\n",
+            outputStream.toString());
+    }
+
+
+    @Test
+    void testMainSkipsBinaryInputOnlyWhenAsked() throws IOException {
+        Path bin = Files.createTempFile("test", ".bin");
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+        Files.write(bin, data);
+        bin.toFile().deleteOnExit();
+
+        Printtokens.main(new String[] {"--binary=skip", bin.toString()});
+        assertEquals("binary,20000.\n", outputStream.toString());
+
+        outputStream.reset();
+        Printtokens.main(new String[] {bin.toString()});	/* tokenized by default */
+        String tokens = outputStream.toString();
+        assertTrue(outputStream.size() > 1000);
+        assertFalse(tokens.startsWith("binary,"));
+
+        outputStream.reset();
+        Printtokens.main(new String[] {"--binary=text", bin.toString()});
+        assertEquals(tokens, outputStream.toString());
+
+        File nul = createTempFile("(x \0 y)\n");	/* one NUL byte is enough to sniff */
+        outputStream.reset();
+        Printtokens.main(new String[] {nul.getPath()});
+        assertFalse(outputStream.toString().startsWith("binary,"));
+        outputStream.reset();
+        Printtokens.main(new String[] {"--binary=skip", nul.getPath()});
+        assertEquals("binary,8.\n", outputStream.toString());
+    }
+
+    @Test
+    void testMainCoalescesErrorRuns() throws IOException {
+        File testFile = createTempFile("@a @b @c x @d\n");
+        
+        Printtokens.main(new String[] {"--error-budget=100", testFile.getAbsolutePath()});
+        
+        assertEquals("errors,3,\"@a\".\nidentifier,\"x\".\nerror,\"@d\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testMainStopsPastTheErrorBudget() throws IOException {
+        File testFile = createTempFile("@a @b @c x y\n");
+        
+        Printtokens.main(new String[] {"--error-budget=2", testFile.getAbsolutePath()});
+        assertEquals("errors,3,\"@a\".\nsummary,tokens 3,errors 3,skipped 4.\n", outputStream.toString());
+
+        outputStream.reset();
+        File other = createTempFile("x @a y");
+        Printtokens.main(new String[] {"--error-budget=0,abort", other.getAbsolutePath()});
+        assertEquals("identifier,\"x\".\nerror,\"@a\".\nError! Too many error tokens: 1 of 2\n", outputStream.toString());
+
+        outputStream.reset();
+        Printtokens.main(new String[] {"--error-budget=many", other.getAbsolutePath()});
+        assertTrue(outputStream.toString().startsWith("Error! "));
+    }
+
+    @Test
+    void testMainStreamsStdinThatStaysOpen() throws Exception {
+        InputStream originalIn = System.in;
+        PipedOutputStream producer = new PipedOutputStream();
+        System.setIn(new PipedInputStream(producer));
+        Thread th = new Thread(() -> Printtokens.main(new String[0]));
+        try {
+            th.start();
+            producer.write("and x\n".getBytes());
+            producer.flush();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!outputStream.toString().contains("identifier,\"x\".\n") && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals("keyword,\"and\".\nidentifier,\"x\".\n", outputStream.toString());	/* before the pipe closes */
+            producer.write("or\n".getBytes());
+            producer.close();
+            th.join(10000);
+            assertEquals("keyword,\"and\".\nidentifier,\"x\".\nkeyword,\"or\".\n", outputStream.toString());
+        } finally {
+            System.setIn(originalIn);
+        }
+    }
+
+    @Test
+    void testMainIndexReadsNonAsciiLikeMain() throws IOException {
+        String[] lines = {"caf\u00e9 \u00e9t\u00e9\n", "\u00e9 \"\u00e9\u00e9\" x\n", "and \u20ac (y)\n"};
+        File testFile = File.createTempFile("index", ".txt");
+        testFile.deleteOnExit();
+        new File(testFile.getAbsolutePath() + ".tokidx").deleteOnExit();
+        Files.write(testFile.toPath(), String.join("", lines).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        Printtokens.main(new String[] {testFile.getAbsolutePath()});
+        String[] all = outputStream.toString().split("(?<=\n)");
+        Printtokens.main(new String[] {"--build-index=1", testFile.getAbsolutePath()});
+        assertTrue(outputStream.toString().contains("indexed " + all.length + " tokens, 3 checkpoints"), outputStream.toString());
+
+        outputStream.reset();
+        Printtokens.main(new String[] {"--tokens=1-" + all.length, testFile.getAbsolutePath()});
+        assertEquals(String.join("", java.util.Arrays.copyOfRange(all, 1, all.length)), outputStream.toString());
+
+        File line = File.createTempFile("line", ".txt");
+        line.deleteOnExit();
+        for (int i = 0; i < lines.length; i++) {
+            Files.write(line.toPath(), lines[i].getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            outputStream.reset();
+            Printtokens.main(new String[] {line.getAbsolutePath()});
+            String expected = outputStream.toString();
+            outputStream.reset();
+            Printtokens.main(new String[] {"--line=" + (i + 1), testFile.getAbsolutePath()});
+            assertEquals(expected, outputStream.toString());
+        }
+    }
+
+    @Test
+    void testMainReportsOffheapPastTheDirectMemoryCap() throws Exception {
+        File testFile = createTempFile("(and x 12)\n");
+        java.util.List<String> cmd = new java.util.ArrayList<>(Shardrunner.java_command());
+        cmd.add(1, "-XX:MaxDirectMemorySize=1m");
+        cmd.add("--offheap");
+        cmd.add(testFile.getAbsolutePath());
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        String out = new String(p.getInputStream().readAllBytes());
+        assertEquals(0, p.waitFor());
+        assertTrue(out.startsWith("Error! --offheap failed: java.io.IOException: Out of direct memory after 0 tokens"), out);
+    }
+
+    @Test
+    void testMainRejectsAThreadCountBelowOne() throws IOException {
+        File zip = File.createTempFile("test", ".zip");
+        zip.deleteOnExit();
+        try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new java.util.zip.ZipEntry("a.txt"));
+            zos.write("x\n".getBytes());
+            zos.closeEntry();
+        }
+        for (String n : new String[] {"0", "-2", "many"}) {
+            outputStream.reset();
+            Printtokens.main(new String[] {"--threads=" + n, zip.getAbsolutePath()});
+            assertEquals("Error! --threads needs a positive count, not " + n + "\n", outputStream.toString());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package main.printtokens;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.Random;
+
+/* allocation budgets and throughput floors, on fixed generated corpora.
+   the floors are MB/s of one reference machine, so they run only with -Dperf=true */
+public class perf_tests {
+
+    static final int ROUNDS = 5;
+    static final long CURSOR_FILE_BUDGET = 16 * 1024;    /* bytes per input on the cursor path */
+    static final double PRINT_TOKEN_BUDGET = 256;        /* bytes per token through print_token */
+    static final double TOLERANCE = Double.parseDouble(System.getProperty("perf.tolerance", "0.5"));
+
+    /* MB/s of scan, classify and print on the reference machine */
+    static final double[] MIXED_BASELINE = {120, 200, 50};
+    static final double[] NESTED_BASELINE = {53, 130, 47};
+    static final double[] LONG_STRING_BASELINE = {165, 560, 520};
+
+    static byte[] mixed_corpus() {
+        Random rnd = new Random(41);
+        StringBuilder sb = new StringBuilder();
+        String[] words = {"and", "or", "if", "xor", "lambda", "=>", "alpha", "beta1", "x", "12", "345", "#a", "@", "1a"};
+        while (sb.length() < 1 << 21) {
+            sb.append('(');
+            for (int i = 0; i < 6; i++) sb.append(words[rnd.nextInt(words.length)]).append(' ');
+            sb.append("\"str ").append(rnd.nextInt(1000)).append("\") ;note\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    static byte[] nested_corpus() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 21) sb.append("(".repeat(30)).append("x").append(")".repeat(30)).append(",`[]\n");
+        return sb.toString().getBytes();
+    }
+
+    static byte[] long_string_corpus() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 22) sb.append('"').append("s".repeat(4000)).append("\" ;").append("c".repeat(4000)).append('\n');
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    void testCursorAllocatesNothingPerToken() throws IOException {
+        assumeAllocationCounting();
+        byte[] data = mixed_corpus();
+        Printtokens t = new Printtokens();
+        for (int i = 0; i < 3; i++) cursorPass(t, data);    /* warm up and fill the buffer pool */
+        long a0 = Stageprofile.allocated();
+        long tokens = cursorPass(t, data);
+        long bytes = Stageprofile.allocated() - a0;
+        assertTrue(tokens > 100000);
+        assertTrue(bytes <= CURSOR_FILE_BUDGET, "cursor pass allocated " + bytes + " bytes for " + tokens + " tokens");
+    }
+
+    private static long cursorPass(Printtokens t, byte[] data) throws IOException {
+        long n = 0;
+        try (Charstream cs = new Charstream(new ByteArrayInputStream(data))) {
+            Tokencursor cur = new Tokencursor(t, cs);
+            while (cur.next()) n++;
+        }
+        return n;
+    }
+
+    @Test
+    void testSlicecursorAllocatesNothingPerToken() {
+        assumeAllocationCounting();
+        byte[] data = mixed_corpus();
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(data.length).put(data).flip();
+        for (int i = 0; i < 3; i++) slicePass(direct);
+        long a0 = Stageprofile.allocated();
+        long tokens = slicePass(direct);
+        long bytes = Stageprofile.allocated() - a0;
+        assertTrue(bytes <= CURSOR_FILE_BUDGET, "slice pass allocated " + bytes + " bytes for " + tokens + " tokens");
+    }
+
+    private static long slicePass(java.nio.ByteBuffer data) {
+        long n = 0;
+        Slicecursor s = Tokenengine.BUILTIN.cursor(data);
+        while (s.next()) n++;
+        return n;
+    }
+
+    @Test
+    void testPrintTokenAllocationBudget() throws IOException {
+        assumeAllocationCounting();
+        Stageprofile p = Stageprofile.measure(new Printtokens(), mixed_corpus(), 3);
+        double total = 0;
+        for (double b : p.bytes_per_token) total += b;
+        assertTrue(total <= PRINT_TOKEN_BUDGET, "over budget\n" + p);
+    }
+
+    @Test
+    void testMixedThroughput() throws IOException {
+        checkBaseline("mixed", mixed_corpus(), MIXED_BASELINE);
+    }
+
+    @Test
+    void testNestedThroughput() throws IOException {
+        checkBaseline("nested", nested_corpus(), NESTED_BASELINE);
+    }
+
+    @Test
+    void testLongStringThroughput() throws IOException {
+        checkBaseline("long strings", long_string_corpus(), LONG_STRING_BASELINE);
+    }
+
+    /* fails naming every stage below its baseline, with the whole report */
+    private static void checkBaseline(String corpus, byte[] data, double[] baseline) throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(Boolean.getBoolean("perf"), "throughput floors run with -Dperf=true");
+        Stageprofile p = Stageprofile.measure(new Printtokens(), data, ROUNDS);
+        StringBuilder slow = new StringBuilder();
+        for (int s = 0; s < Stageprofile.STAGES.length; s++) {
+            if (p.mb_per_s[s] < baseline[s] * (1 - TOLERANCE))
+                slow.append(String.format(" %s %.1f MB/s < %.1f", Stageprofile.STAGES[s], p.mb_per_s[s], baseline[s]));
+        }
+        assertTrue(slow.length() == 0, corpus + " regressed:" + slow + "\n" + p);
+    }
+
+    private static void assumeAllocationCounting() {
+        org.junit.jupiter.api.Assumptions.assumeTrue(Stageprofile.allocated() >= 0, "no per-thread allocation counter");
+    }
+}
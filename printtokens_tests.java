@@ -6,6 +6,9 @@ import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 public class printtokens_tests {
     
@@ -700,4 +703,1067 @@ public class printtokens_tests {
     }
     
         
+    @Test
+    void testGetTokenFromInputStream() throws IOException {
+        InputStream in = new ByteArrayInputStream("and (x) ;c\n".getBytes());
+        Charstream cs = new Charstream(in);
+        assertEquals("and", printtokens.get_token(cs));
+        assertEquals("(", printtokens.get_token(cs));
+        assertEquals("x", printtokens.get_token(cs));
+        assertEquals(")", printtokens.get_token(cs));
+        assertEquals(";c", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testGetTokenFromChannel() throws IOException {
+        InputStream in = new ByteArrayInputStream("#a 12".getBytes());
+        Charstream cs = new Charstream(java.nio.channels.Channels.newChannel(in));
+        assertEquals("#a", printtokens.get_token(cs));
+        assertEquals("12", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testGetTokenFromReaderWithoutMark() throws IOException {
+        Reader nomark = new FilterReader(new StringReader("word;")) {
+            @Override
+            public boolean markSupported() { return false; }
+            @Override
+            public void mark(int limit) throws IOException { throw new IOException("mark not supported"); }
+        };
+        Charstream cs = new Charstream(nomark);
+        assertEquals("word", printtokens.get_token(cs));
+        assertEquals(";", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testGetTokenAcrossBufferBoundary() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Charstream.BUF_SIZE - 2; i++) sb.append(' ');
+        sb.append("abcd(");
+        Charstream cs = new Charstream(new StringReader(sb.toString()));
+        assertEquals("abcd", printtokens.get_token(cs));
+        assertEquals("(", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testTokenPositions() throws IOException {
+        Charstream cs = new Charstream(new StringReader("and\n  (x)\n\n ;c"));
+        cs.track_positions(null);
+        assertEquals("and", printtokens.get_token(cs));
+        assertEquals(1, cs.token_line);
+        assertEquals(1, cs.token_col);
+        assertEquals("(", printtokens.get_token(cs));
+        assertEquals(2, cs.token_line);
+        assertEquals(3, cs.token_col);
+        assertEquals("x", printtokens.get_token(cs));
+        assertEquals(2, cs.token_line);
+        assertEquals(4, cs.token_col);
+        assertEquals(")", printtokens.get_token(cs));
+        assertEquals(";c", printtokens.get_token(cs));
+        assertEquals(4, cs.token_line);
+        assertEquals(2, cs.token_col);
+        assertEquals(12, cs.token_offset);
+    }
+
+    @Test
+    void testLineindexLocate() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) sb.append("line").append(i).append('\n');
+        File testFile = createTempFile(sb.toString());
+        Lineindex index = new Lineindex(8);
+        Charstream cs = new Charstream(new FileInputStream(testFile));
+        cs.track_positions(index);
+        while (printtokens.get_token(cs) != null) { }
+        cs.close();
+        assertEquals(101, index.lines());
+        assertEquals(13, index.checkpoints());
+
+        long offset = sb.indexOf("line42") + 3;
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(testFile.toPath())) {
+            long[] pos = index.locate(offset, ch);
+            assertEquals(43, pos[0]);
+            assertEquals(4, pos[1]);
+        }
+    }
+
+    @Test
+    void testPrintTokenWithPosition() {
+        printtokens.print_token("@x", 3, 7);
+        assertEquals("3:7 error,\"@x\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testTokenindexQueryMatchesFullScan() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) sb.append("(id").append(i).append(" ").append(i).append(") ;c\n");
+        File testFile = createTempFile(sb.toString());
+        java.nio.file.Path path = testFile.toPath();
+
+        Tokenindex ix = Tokenindex.build(printtokens, path, 50);
+        assertEquals(1000, ix.tokens);
+        assertTrue(ix.checkpoints() > 10);
+        for (int k = 1; k < ix.checkpoints(); k++) {
+            assertEquals(ix.ordinal(k), (ix.line(k) - 1) * 5);
+        }
+        ix.write(Tokenindex.sidecar(path));
+        Tokenindex read = Tokenindex.read(Tokenindex.sidecar(path));
+        Tokenindex.sidecar(path).toFile().deleteOnExit();
+        assertEquals(ix.checkpoints(), read.checkpoints());
+        assertTrue(read.is_current(path));
+
+        read.print_tokens(printtokens, path, 502, 506);
+        assertEquals("numeric,100.\nrparen.\ncomment,\";c\".\nlparen.\n", outputStream.toString());
+
+        outputStream.reset();
+        read.print_line(printtokens, path, 42);
+        assertEquals("lparen.\nidentifier,\"id41\".\nnumeric,41.\nrparen.\ncomment,\";c\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testTreewatcherRetokenizesChangedFiles() throws Exception {
+        java.nio.file.Path src = java.nio.file.Files.createTempDirectory("src");
+        java.nio.file.Path mirror = java.nio.file.Files.createTempDirectory("mirror");
+        java.nio.file.Files.createDirectories(src.resolve("sub"));
+        java.nio.file.Files.write(src.resolve("a.txt"), "and x".getBytes());
+        java.nio.file.Files.write(src.resolve("sub/b.txt"), "(y)".getBytes());
+
+        try (Treewatcher w = new Treewatcher(printtokens, src, mirror, 20)) {
+            w.bulk_pass();
+            assertEquals(2, w.runs.get());
+            assertEquals(5, w.total_tokens.get());
+            assertEquals("lparen.\nidentifier,\"y\".\nrparen.\n",
+                new String(java.nio.file.Files.readAllBytes(mirror.resolve("sub/b.txt.tokens"))));
+
+            Thread watcher = new Thread(() -> {
+                try { w.watch(); } catch (IOException e) { }
+            });
+            watcher.setDaemon(true);
+            watcher.start();
+
+            java.nio.file.Files.write(src.resolve("a.txt"), "and x @".getBytes());
+            java.nio.file.Files.write(src.resolve("c.txt"), "1".getBytes());
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((w.runs.get() < 4 || w.total_tokens.get() != 7) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(7, w.total_tokens.get());
+            assertEquals(1, w.total_errors.get());
+            assertEquals(3, w.stats_of(src.resolve("a.txt"))[0]);
+            assertEquals("numeric,1.\n", new String(java.nio.file.Files.readAllBytes(mirror.resolve("c.txt.tokens"))));
+        }
+    }
+
+    @Test
+    void testFilterSkipsExcludedComments() throws IOException {
+        printtokens.set_filter(null, "comment");
+        Charstream cs = new Charstream(new StringReader("a ;c ( c\n;x\tb;y"));
+        assertEquals("a", printtokens.get_token(cs));
+        assertEquals("b", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testFilterSkipsExcludedStrings() throws IOException {
+        printtokens.set_filter(null, "string");
+        Charstream cs = new Charstream(new StringReader("\"s ;\" x \"open\n"));
+        assertEquals("x", printtokens.get_token(cs));
+        assertEquals("\"open", printtokens.get_token(cs));
+        assertNull(printtokens.get_token(cs));
+    }
+
+    @Test
+    void testFilterOnlyIdentifiers() {
+        printtokens.set_filter("identifier", null);
+        printtokens.print_token("and");
+        printtokens.print_token("x");
+        printtokens.print_token("(");
+        printtokens.print_token("@");
+        assertEquals("identifier,\"x\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testFilterUnknownType() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            printtokens.set_filter("identifiers", null);
+        });
+    }
+
+    @Test
+    void testLoadedGrammarDialect() throws IOException {
+        String spec = "# a small dialect\nsymbol { lbrace\nsymbol } rbrace\nkeyword def\ncomment %\nstring '\nchar ?\n";
+        printtokens.grammar = Grammar.parse(new StringReader(spec), "test");
+        Charstream cs = new Charstream(new StringReader("def {x} 'a b' ?c %rest\n(y"));
+        String tok;
+        while ((tok = printtokens.get_token(cs)) != null) {
+            printtokens.print_token(tok);
+        }
+        assertEquals("keyword,\"def\".\nlbrace.\nidentifier,\"x\".\nrbrace.\nstring,'a b'.\n"
+            + "character,\"c\".\ncomment,\"%rest\".\nerror,\"(y\".\n", outputStream.toString());
+    }
+
+    @Test
+    void testBuiltinGrammarTables() {
+        assertEquals("lparen", Grammar.BUILTIN.spec_name("("));
+        assertNull(Grammar.BUILTIN.spec_name("(("));
+        assertTrue(Grammar.BUILTIN.is_token_end(0, ';'));
+        assertFalse(Grammar.BUILTIN.is_token_end(0, '\t'));
+        assertTrue(Grammar.BUILTIN.is_token_end(1, '"'));
+        assertFalse(Grammar.BUILTIN.is_token_end(2, '"'));
+        assertFalse(Grammar.BUILTIN.is_spec_symbol('\u20ac'));
+    }
+
+    @Test
+    void testGrammarSpecErrors() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            Grammar.parse(new StringReader("symbol ( lparen\nsymbol ( again\ncomment ;\nstring \"\nchar #\n"), "dup");
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            Grammar.parse(new StringReader("symbol ( lparen\nstring \"\nchar #\n"), "no comment");
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            Grammar.parse(new StringReader("symbol ; semi\ncomment ;\nstring \"\nchar #\n"), "clash");
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            Grammar.parse(new StringReader("token x\n"), "unknown");
+        });
+    }
+
+    @Test
+    void testCompiledLexerMatchesInterpreted() throws IOException {
+        String spec = "symbol { lbrace\nsymbol } rbrace\nsymbol ( lparen\nkeyword def\nkeyword =>\ncomment %\nstring '\nchar ?\n";
+        Grammar[] grammars = {Grammar.BUILTIN, Grammar.parse(new StringReader(spec), "test"),
+            Grammar.parse(new StringReader("comment ;\nstring \"\nchar #\n"), "no symbols or keywords"),
+            Grammar.parse(new StringReader("keyword a\"b\nkeyword c\\d\nkeyword \u00e9t\u00e9\nkeyword e\u007f\ncomment ;\nstring '\nchar #\n"), "escapes")};
+        String input = "and (x) \"s t\" 'u v' ;c\n%d\n?a #b => def {y}z 12 1a \"open\n@x\t,`[] a\"b c\\d \u00e9t\u00e9 e\u007f \n";
+        for (Grammar g : grammars) {
+            Lexergen.Lexer lexer = Lexergen.compile(g);
+            if (lexer == null) {
+                return;		/* running on a JRE: nothing to compare */
+            }
+            Printtokens interpreted = new Printtokens();
+            interpreted.grammar = g;
+            Printtokens compiled = interpreted.fork();
+            compiled.lexer = lexer;
+            Charstream a = new Charstream(new StringReader(input));
+            Charstream b = new Charstream(new StringReader(input));
+            String tok;
+            int n = 0;
+            while ((tok = interpreted.get_token(a)) != null) {
+                assertEquals(tok, compiled.get_token(b));
+                assertEquals(interpreted.type_of(tok), compiled.type_of(tok));
+                n++;
+            }
+            assertNull(compiled.get_token(b));
+            assertTrue(n > 15);
+            if (g == grammars[3]) assertEquals(Printtokens.keyword, compiled.type_of("a\"b"));
+        }
+    }
+
+    @Test
+    void testEngineSessionsRunConcurrently() throws Exception {
+        Tokenengine engine = Tokenengine.of(Grammar.BUILTIN, false, null, "comment");
+        int n = 32;
+        String[] outputs = new String[n];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                StringBuilder in = new StringBuilder();
+                for (int j = 0; j < 2000; j++) in.append("(x").append(id).append(" ").append(j).append(") ;c\n");
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                long tokens = engine.tokenize(new StringReader(in.toString()), new PrintStream(bos));
+                outputs[id] = tokens + ":" + bos.toString().hashCode();
+            });
+            threads[i].start();
+        }
+        for (Thread th : threads) th.join();
+
+        for (int i = 0; i < n; i++) {
+            StringBuilder expected = new StringBuilder();
+            for (int j = 0; j < 2000; j++) {
+                expected.append("lparen.\nidentifier,\"x" + i + "\".\nnumeric," + j + ".\nrparen.\n");
+            }
+            assertEquals(8000 + ":" + expected.toString().hashCode(), outputs[i]);
+        }
+        assertEquals("", outputStream.toString());
+    }
+
+    @Test
+    void testSessionBuffersArePooled() throws IOException {
+        assertTrue(Charstream.POOL_SIZE <= 2 * Runtime.getRuntime().availableProcessors());
+        Tokensession s = Tokenengine.BUILTIN.open(new ByteArrayInputStream("a b".getBytes()), new PrintStream(new ByteArrayOutputStream()));
+        assertEquals("a", s.next_token());
+        assertEquals(Printtokens.identifier, s.token_type("a"));
+        int before = Charstream.pooled_blocks();
+        s.close();
+        assertTrue(Charstream.pooled_blocks() >= Math.min(before + 2, Charstream.POOL_SIZE));
+        Tokensession again = Tokenengine.BUILTIN.open(new ByteArrayInputStream("c".getBytes()), new PrintStream(new ByteArrayOutputStream()));
+        assertEquals("c", again.next_token());
+        assertNull(again.next_token());
+        again.close();
+    }
+
+    @Test
+    void testTokencursorMatchesGetToken() throws IOException {
+        String input = "and (x) \"s t\" ;c\n#a => [y]z 12 1a \"open\n@x\t,` or\0q xor";
+        Charstream a = new Charstream(new StringReader(input));
+        Tokencursor cur = new Tokencursor(printtokens, new Charstream(new StringReader(input)));
+        String tok;
+        while ((tok = printtokens.get_token(a)) != null) {
+            assertTrue(cur.next());
+            assertEquals(tok, cur.token());
+            assertEquals(Printtokens.token_type(tok), cur.type);
+            assertEquals(tok, input.substring((int) cur.offset, (int) cur.offset + cur.length));
+        }
+        assertFalse(cur.next());
+    }
+
+    @Test
+    void testTokenstoreKeepsTokensOffHeap() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) sb.append("(id").append(i).append(" \"s\") ;c\n");
+        Tokenstore store = Tokenstore.tokenize(printtokens, new Charstream(new ByteArrayInputStream(sb.toString().getBytes())), true);
+        assertEquals(25000, store.size());
+        assertEquals(Printtokens.identifier, store.type(6));
+        assertEquals(sb.indexOf("id1 "), store.offset(6));
+        byte[] buf = new byte[16];
+        int n = store.copy_text(6, buf);
+        assertEquals("id1", new String(buf, 0, n));
+        long[] counts = new long[Printtokens.char_constant + 1];
+        store.for_each((i, type, offset, length) -> counts[type]++);
+        assertEquals(10000, counts[Printtokens.spec_symbol]);
+        assertEquals(5000, counts[Printtokens.comment]);
+        store.close();
+        assertThrows(IllegalStateException.class, () -> {
+            store.type(0);
+        });
+    }
+
+    @Test
+    void testTokentableQueries() throws IOException {
+        Tokentable table = new Tokentable();
+        table.add_file("a", printtokens, new Charstream(new StringReader("(foo bar foo) 12345678901 7 and")));
+        table.add_file("b", printtokens, new Charstream(new StringReader("foo ;c\n123456789012 baz")));
+        assertEquals(3, table.count(Printtokens.num_constant, 1));
+        assertArrayEquals(new long[] {3, 2}, table.count_by_file(Printtokens.identifier, 1));
+        List<Map.Entry<String, Long>> top = table.top(Printtokens.identifier, 2, 1);
+        assertEquals("foo", top.get(0).getKey());
+        assertEquals(3L, (long) top.get(0).getValue());
+        assertEquals(2, top.size());
+        int[] rows = table.longer_than(Printtokens.num_constant, 10);
+        assertEquals(2, rows.length);
+        assertEquals(14, table.offset(rows[0]));
+        assertEquals(12, table.length(rows[1]));
+        assertEquals(1, table.files[rows[1]]);
+        assertThrows(IllegalArgumentException.class, () -> {
+            table.top(Printtokens.comment, 1, 1);
+        });
+
+        Tokentable big = new Tokentable();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 60000; i++) sb.append("(x").append(i % 100).append(" 1) ");
+        big.add_file("big", printtokens, new Charstream(new StringReader(sb.toString())));
+        assertEquals(big.count(Printtokens.identifier, 1), big.count(Printtokens.identifier, 4));
+        assertEquals(big.top(Printtokens.identifier, 5, 1), big.top(Printtokens.identifier, 5, 4));
+        assertEquals(100, big.dict.size());
+    }
+
+    @Test
+    void testTokensketchFindsHeavyHittersAndMerges() throws IOException {
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            a.append("w").append(i).append(" hot hot ");
+            b.append("v").append(i).append(" warm warm hot and ");
+        }
+        Tokensketch sa = Tokensketch.sketch(printtokens, new Charstream(new StringReader(a.toString())), Tokensketch.for_budget(1 << 16, 3));
+        Tokensketch sb = Tokensketch.sketch(printtokens, new Charstream(new StringReader(b.toString())), Tokensketch.for_budget(1 << 16, 3));
+        assertTrue(sa.bytes() <= 1 << 16);
+        sa.merge(sb);
+        assertEquals(List.of("hot", "warm", "and"), sa.top(3));
+        long hot = sa.estimate("hot");
+        assertTrue(hot >= 60000 && hot <= 60000 + sa.count_error());
+        assertEquals(160000, sa.total);
+        long d = sa.distinct();
+        assertTrue(Math.abs(d - 40003) < 40003 * 4 * sa.distinct_error(), "distinct " + d);
+        assertThrows(IllegalArgumentException.class, () -> {
+            sa.merge(Tokensketch.for_budget(1 << 20, 3));
+        });
+    }
+
+    @Test
+    void testTokendiffFindsChangedRanges() throws IOException {
+        Tokendiff d = new Tokendiff();
+        Tokendiff.Side a = d.read(printtokens, new Charstream(new StringReader("(a b c)\nd e f\n(g)")));
+        Tokendiff.Side b = d.read(printtokens, new Charstream(new StringReader("(a c)\nd x y f\n(g) h")));
+        List<int[]> hunks = Tokendiff.diff(a.ids, a.n, b.ids, b.n);
+        assertEquals(3, hunks.size());
+        assertArrayEquals(new int[] {2, 3, 2, 2}, hunks.get(0));
+        assertArrayEquals(new int[] {6, 7, 5, 7}, hunks.get(1));
+        assertArrayEquals(new int[] {11, 11, 11, 12}, hunks.get(2));
+        assertEquals("1:4", a.position(2));
+        assertEquals("2:3", b.position(5));
+        assertEquals("eof", a.position(11));
+        assertEquals(0, d.print(printtokens, a, a));
+        assertEquals(0, Tokendiff.diff(a.ids, a.n, a.ids, a.n).size());
+    }
+
+    @Test
+    void testTokendiffIsMinimal() {
+        Random rnd = new Random(38);
+        for (int round = 0; round < 200; round++) {
+            int[] a = new int[rnd.nextInt(40)];
+            int[] b = new int[rnd.nextInt(40)];
+            for (int i = 0; i < a.length; i++) a[i] = rnd.nextInt(4);
+            for (int i = 0; i < b.length; i++) b[i] = rnd.nextInt(4);
+            int edits = 0;
+            int[] ai = new int[a.length + 1];
+            int[] bi = new int[b.length + 1];
+            int pa = 0, pb = 0;
+            for (int[] h : Tokendiff.diff(a, a.length, b, b.length)) {
+                assertEquals(h[0] - pa, h[2] - pb);
+                for (; pa < h[0]; pa++, pb++) assertEquals(a[pa], b[pb]);
+                edits += h[1] - h[0] + h[3] - h[2];
+                pa = h[1];
+                pb = h[3];
+            }
+            assertEquals(a.length - pa, b.length - pb);
+            for (; pa < a.length; pa++, pb++) assertEquals(a[pa], b[pb]);
+            int[][] lcs = new int[a.length + 1][b.length + 1];
+            for (int i = a.length - 1; i >= 0; i--)
+                for (int j = b.length - 1; j >= 0; j--)
+                    lcs[i][j] = a[i] == b[j] ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            assertEquals(a.length + b.length - 2 * lcs[0][0], edits);
+        }
+    }
+
+    @Test
+    void testDirectprinterMatchesPrintToken() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("(and x").append(i).append(" 42 #a ` \"short\" 1a @\n");
+            if (i % 100 == 0) sb.append("\"").append("s".repeat(1000 + i)).append("\" ;").append("c".repeat(2000)).append("\n");
+            if (i % 500 == 0) sb.append("caf\u00e9 \u00e9t\u00e9 (\u00e9) \"").append("\u00e9".repeat(300 + i)).append("\" ;\u20ac\n");
+        }
+        sb.append("9".repeat(70000)).append(" \"open");
+        File src = File.createTempFile("direct", ".txt");
+        File dst = File.createTempFile("direct", ".out");
+        File map = File.createTempFile("direct", ".map");
+        src.deleteOnExit();
+        dst.deleteOnExit();
+        map.deleteOnExit();
+        try (FileWriter w = new FileWriter(src)) {
+            w.write(sb.toString());
+        }
+        Grammar[] grammars = {Grammar.BUILTIN, Grammar.parse(new StringReader("symbol ( \u00e9\nsymbol ) close\ncomment ;\nstring \"\nchar #\n"), "test")};
+        for (Grammar g : grammars) {
+            printtokens.grammar = g;
+            outputStream.reset();
+            Charstream cs = new Charstream(new FileReader(src));
+            String tok;
+            while ((tok = printtokens.get_token(cs)) != null) printtokens.print_token(tok);
+            cs.close();
+            byte[] expected = outputStream.toByteArray();
+            outputStream.reset();
+
+            long n = Directprinter.print_stream(printtokens, src.toPath(), System.out);
+            assertEquals(expected.length, n);
+            assertArrayEquals(expected, outputStream.toByteArray());
+            assertEquals(n, Directprinter.print_file(printtokens, src.toPath(), dst.toPath()));
+            assertArrayEquals(expected, java.nio.file.Files.readAllBytes(dst.toPath()));
+            assertEquals(n, Directprinter.print_mapped(printtokens, src.toPath(), map.toPath()));
+            assertArrayEquals(expected, java.nio.file.Files.readAllBytes(map.toPath()));
+        }
+    }
+
+    @Test
+    void testSpecSymbolLinesArePreEncoded() {
+        assertArrayEquals("lparen.\n".getBytes(), Grammar.BUILTIN.spec_lines['(']);
+        assertNull(Grammar.BUILTIN.spec_lines['a']);
+        Grammar g = Grammar.parse(new StringReader("symbol ( \u00e9\nsymbol ) close\nkeyword (x\ncomment ;\nstring \"\nchar #\n"), "test");
+        assertNull(g.spec_lines['(']);
+        assertEquals(Printtokens.keyword, g.token_type("(x"));
+        assertEquals(Printtokens.spec_symbol, g.token_type("("));
+        assertEquals(Printtokens.spec_symbol, Grammar.BUILTIN.token_type("(x"));
+        Printtokens.print_spec_symbol(g, ")", System.out);
+        assertEquals("close.\n", outputStream.toString());
+    }
+
+    @Test
+    void testPrintTokenQuotedPrefixes() {
+        printtokens.print_token("lambda");
+        printtokens.print_token("abc1");
+        printtokens.print_token("x".repeat(300));
+        printtokens.print_token("(");
+        assertEquals("keyword,\"lambda\".\nidentifier,\"abc1\".\nidentifier,\"" + "x".repeat(300) + "\".\nlparen.\n", outputStream.toString());
+    }
+
+    @Test
+    void testShadowcheckLogsDivergences() throws IOException {
+        StringBuilder sb = new StringBuilder("(a xor b)\n");
+        for (int i = 0; i < 60000; i++) sb.append("(and x").append(i).append(" 12 \"s\") ;c\n");
+        byte[] data = sb.toString().getBytes();
+        Printtokens plain = new Printtokens();
+        Printtokens fast = new Printtokens();
+        fast.lexer = new Lexergen.Lexer() {
+            public String get_token(Charstream cs, boolean skip_comments, boolean skip_strings) {
+                return plain.get_token(cs);
+            }
+
+            public int token_type(String tok) {
+                return tok.equals("xor") ? Printtokens.identifier : Grammar.BUILTIN.token_type(tok);
+            }
+        };
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Shadowcheck s = new Shadowcheck(fast, new Printtokens(), 1.0, new PrintStream(log, true));
+        ByteArrayOutputStream served = new ByteArrayOutputStream();
+        s.serve(new ByteArrayInputStream(data), new PrintStream(served, true));
+        s.close();
+        assertTrue(s.chunks.get() > 1);
+        assertEquals(s.chunks.get(), s.sampled.get() + s.skipped.get());
+        assertEquals(1, s.divergences.get());
+        String lines = log.toString();
+        assertTrue(lines.startsWith("divergence,chunk 0,offset 0,line 1.\n"), lines);
+        assertTrue(lines.contains("-keyword,\"xor\".\n+identifier,\"xor\".\nfragment,\"(a xor b)\".\n"), lines);
+        assertTrue(served.toString().startsWith("lparen.\nidentifier,\"a\".\nidentifier,\"xor\".\nidentifier,\"b\".\nrparen.\n"));
+
+        Shadowcheck none = new Shadowcheck(fast, new Printtokens(), 0.0, new PrintStream(log, true));
+        none.serve(new ByteArrayInputStream(data), new PrintStream(new ByteArrayOutputStream()));
+        none.close();
+        assertEquals(0, none.sampled.get());
+    }
+
+    @Test
+    void testSlicecursorMatchesTokencursor() throws IOException {
+        String input = "and (x) \"s t\" ;c\n#a => [y]z 12 1a \"open\n@x\t,` or\0q xor\r\n\"last\"";
+        byte[] raw = ("junk" + input + "tail").getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(input.length());
+        direct.put(input.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1)).flip();
+        Slicecursor[] cursors = {
+            Tokenengine.BUILTIN.cursor(input),
+            Tokenengine.BUILTIN.cursor(new StringBuilder(input)),
+            Tokenengine.BUILTIN.cursor(raw, 4, input.length()),
+            Tokenengine.BUILTIN.cursor(direct)
+        };
+        for (Slicecursor s : cursors) {
+            Tokencursor cur = new Tokencursor(printtokens, new Charstream(new StringReader(input)));
+            while (cur.next()) {
+                assertTrue(s.next());
+                assertEquals(cur.token(), s.text().toString());
+                assertEquals(cur.type, s.type());
+                assertEquals(cur.offset, s.start());
+                assertEquals(cur.length, s.length());
+            }
+            assertFalse(s.next());
+            assertFalse(s.next());
+        }
+        assertEquals(0, direct.position());
+        Slicecursor b = Tokenengine.BUILTIN.cursor(raw, 4, input.length());
+        assertTrue(b.next());
+        java.nio.ByteBuffer tok = b.bytes();
+        assertEquals(3, tok.remaining());
+        assertEquals('a', tok.get(0));
+        assertThrows(IllegalStateException.class, () -> {
+            Slicecursor c = Tokenengine.BUILTIN.cursor("x");
+            c.next();
+            c.bytes();
+        });
+    }
+
+    @Test
+    void testSlicecursorAppliesEngineFilter() {
+        Tokenengine e = Tokenengine.of(Grammar.BUILTIN, false, null, "comment,string,symbol");
+        Slicecursor s = e.cursor("(a \"s\" ;c\n b)");
+        StringBuilder seen = new StringBuilder();
+        while (s.next()) seen.append(s.text()).append('|');
+        assertEquals("a|b|", seen.toString());
+    }
+
+    @Test
+    void testPostingindexBuildsMergesAndLooksUp() throws IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("corpus");
+        int nfiles = Postingindex.SEGMENT_FILES * 2 + 3;    /* three segments to merge */
+        for (int f = 0; f < nfiles; f++) {
+            String body = "(if x" + f + " shared) ;shared\n" + (f % 2 == 0 ? "shared and \"shared\"\n" : "");
+            java.nio.file.Files.write(dir.resolve(String.format("f%04d.txt", f)), body.getBytes());
+        }
+        java.nio.file.Path index = java.nio.file.Files.createTempFile("corpus", ".pix");
+        Printtokens t = new Printtokens();
+        t.threads = 3;
+        int words = Postingindex.build(t, dir, index);
+        assertEquals(nfiles + 3, words);     /* x0.., if, shared and and; comments and strings are not words */
+        List<String> seen = new java.util.ArrayList<>();
+        try (Postingindex ix = Postingindex.open(index)) {
+            assertEquals(nfiles, ix.files());
+            long n = ix.lookup("shared", (f, offset) -> seen.add(ix.file_name(f) + "@" + offset));
+            assertEquals(nfiles + (nfiles + 1) / 2, n);
+            assertEquals(n, seen.size());
+            assertEquals("f0000.txt@7", seen.get(0));
+            assertEquals("f0000.txt@23", seen.get(1));
+            assertEquals("f0001.txt@7", seen.get(2));
+            assertEquals("f0514.txt@9", seen.get(seen.size() - 2));
+            assertEquals("f0514.txt@25", seen.get(seen.size() - 1));
+            assertEquals(1, ix.lookup("x300", (f, offset) -> assertEquals("f0300.txt", ix.file_name(f))));
+            assertEquals(0, ix.lookup("missing", (f, offset) -> fail("no postings")));
+            assertEquals(0, ix.lookup("", (f, offset) -> fail("no postings")));
+        }
+        try (java.util.stream.Stream<java.nio.file.Path> s = java.nio.file.Files.list(dir)) {
+            s.forEach(p -> p.toFile().delete());
+        }
+        dir.toFile().delete();
+        index.toFile().delete();
+    }
+
+
+    @Test
+    void testShardrunnerMergesInOrderAndRetries() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) sb.append("(and x").append(i).append(" 12 \"s t\") ;c\n");
+        File f = createTempFile(sb.toString());
+        ByteArrayOutputStream want = new ByteArrayOutputStream();
+        Printtokens plain = new Printtokens();
+        plain.out = new PrintStream(want, true);
+        try (Charstream cs = new Charstream(new FileReader(f))) {
+            String tok;
+            while ((tok = plain.get_token(cs)) != null) plain.print_token(tok);
+        }
+
+        Shardrunner r = new Shardrunner(List.of(), 2);
+        r.shard_bytes = 256;
+        ByteArrayOutputStream got = new ByteArrayOutputStream();
+        r.run(f.toPath(), got);
+        assertEquals(want.toString(), got.toString());
+        assertTrue(r.shards > 10);
+        assertEquals(0, r.retries);
+        assertEquals(f.length(), r.bytes);
+        assertEquals(200, r.counts[1]);
+        assertEquals(200, r.counts[3]);
+        assertEquals(200, r.counts[7]);
+
+        File marker = new File(f.getPath() + ".crashed");
+        Shardrunner crashy = new Shardrunner(List.of("--exclude=comment"), 2);
+        crashy.shard_bytes = 256;
+        List<String> cmd = new java.util.ArrayList<>(List.of("sh", "-c",
+            "if mkdir '" + marker + "' 2>/dev/null; then read l; exit 3; fi; exec \"$0\" \"$@\""));
+        cmd.addAll(Shardrunner.java_command());
+        crashy.launcher = cmd;
+        ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+        crashy.run(f.toPath(), filtered);
+        assertEquals(1, crashy.retries);
+        assertEquals(want.toString().replace("comment,\";c\".\n", ""), filtered.toString());
+        assertEquals(0, crashy.counts[7]);
+        assertTrue(marker.delete());
+    }
+
+    @Test
+    void testCheckpointerResumesFromTheLastCheckpoint() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) sb.append("(and x").append(i).append(" 12 \"s t\") ;c\n");
+        File f = createTempFile(sb.toString());
+        ByteArrayOutputStream want = new ByteArrayOutputStream();
+        Printtokens plain = new Printtokens();
+        plain.out = new PrintStream(want, true);
+        try (Charstream cs = new Charstream(new FileReader(f))) {
+            String tok;
+            while ((tok = plain.get_token(cs)) != null) plain.print_token(tok);
+        }
+        java.nio.file.Path out = java.nio.file.Files.createTempFile("tokens", ".out");
+        java.nio.file.Path sidecar = Checkpointer.sidecar(out);
+
+        Checkpointer first = Checkpointer.start(new Printtokens(), f.toPath(), out, 512);
+        first.every = 1024;
+        for (int i = 0; i < 10; i++) assertTrue(first.step());
+        first.close();		/* dies here, past its last checkpoint */
+        assertTrue(first.checkpoints > 0);
+        assertTrue(java.nio.file.Files.exists(sidecar));
+        java.nio.file.Files.write(out, "torn line".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        Checkpointer second = Checkpointer.resume(new Printtokens(), f.toPath(), out, 512);
+        assertTrue(second.in_offset > 0);
+        assertEquals('\n', sb.charAt((int) second.in_offset - 1));
+        second.run();
+        second.close();
+        assertEquals(want.toString(), new String(java.nio.file.Files.readAllBytes(out)));
+        assertEquals(300, second.counts[1]);
+        assertEquals(600, second.counts[2]);
+        assertFalse(java.nio.file.Files.exists(sidecar));
+        assertThrows(IOException.class, () -> Checkpointer.resume(new Printtokens(), f.toPath(), out, 512));
+        java.nio.file.Files.delete(out);
+    }
+
+    @Test
+    void testLiveprinterEmitsEachTokenOnceItEnds() throws Exception {
+        PipedOutputStream producer = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(producer);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Liveprinter p = Liveprinter.of(new Printtokens(), "token", sink);
+        Thread th = new Thread(() -> {
+            try {
+                p.run(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        th.start();
+        producer.write("(and x ".getBytes());
+        producer.flush();
+        String want = "lparen.\nkeyword,\"and\".\nidentifier,\"x\".\n";
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!sink.toString().equals(want) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(want, sink.toString());	/* out while the producer is still open */
+        producer.write("12)\n".getBytes());
+        producer.close();
+        th.join(10000);
+        assertEquals(want + "numeric,12.\nrparen.\n", sink.toString());
+        assertEquals(5, p.latency.total);
+        assertTrue(p.flushes >= 3);
+
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        Liveprinter b = Liveprinter.of(new Printtokens(), "block", blocks);
+        b.run(new ByteArrayInputStream("a b\nc\n".getBytes()));
+        assertEquals(1, b.flushes);
+        Liveprinter lines = Liveprinter.of(new Printtokens(), "line", new ByteArrayOutputStream());
+        lines.run(new ByteArrayInputStream("a b\nc\n".getBytes()));
+        assertEquals(2, lines.flushes);
+        assertThrows(IllegalArgumentException.class, () -> Liveprinter.of(new Printtokens(), "never", sink));
+    }
+
+    @Test
+    void testLiveprinterHistogramPercentiles() {
+        Liveprinter.Histogram h = new Liveprinter.Histogram();
+        assertEquals(0, h.percentile(0.5));
+        for (long v = 1; v <= 1000; v++) h.record(v * 1000);
+        long p50 = h.percentile(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 17 / 16, "p50 " + p50);
+        long p99 = h.percentile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000, "p99 " + p99);
+        assertEquals(1000000, h.percentile(0.999 + 0.001));
+        for (long v = 0; v < 5000; v++) assertTrue(Liveprinter.Histogram.lowest(Liveprinter.Histogram.index(v)) <= v);
+    }
+
+    @Test
+    void testLinecacheHitsEvictsAndStaysUnderItsCap() {
+        Linecache c = new Linecache(16 * 1024);
+        byte[] line = "identifier,\"hot\".\n".getBytes();
+        assertNull(c.get("hot"));
+        c.put("hot", line, line.length);
+        assertArrayEquals(line, c.get("hot"));
+        for (int i = 0; i < 5000; i++) {
+            String w = "w" + i;
+            byte[] l = ("identifier,\"" + w + "\".\n").getBytes();
+            if (c.get(w) == null) c.put(w, l, l.length);
+            assertNotNull(c.get("hot"));	/* used between every sweep of the hand */
+            assertTrue(c.bytes() <= c.cap());
+        }
+        assertTrue(c.evictions > 0);
+        assertEquals(5001, c.misses);
+        assertEquals(5001, c.hits);
+        assertNull(c.get("w0"));
+        assertArrayEquals(("identifier,\"w4999\".\n").getBytes(), c.get("w4999"));
+        c.clear();
+        assertEquals(0, c.size());
+        assertNull(c.get("hot"));
+    }
+
+    @Test
+    void testLinecachePrintsTheSameLines() {
+        String input = "and (x) y x and \"s\" 12 ;c\n#a @b x\u00e9 x\u00e9 y";
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        Printtokens a = new Printtokens();
+        a.out = new PrintStream(plain, true);
+        Printtokens b = new Printtokens();
+        b.cache = new Linecache(Linecache.DEFAULT_CAP);
+        b.out = new PrintStream(cached, true);
+        for (Printtokens t : new Printtokens[] {a, b}) {
+            Charstream cs = new Charstream(new StringReader(input));
+            String tok;
+            while ((tok = t.get_token(cs)) != null) t.print_token(tok);
+        }
+        assertEquals(plain.toString(), cached.toString());
+        assertEquals(3, b.cache.hits);
+        assertTrue(b.cache != b.fork().cache);
+        b.set_filter(null, "identifier");
+        assertEquals(0, b.cache.size());
+    }
+
+    @Test
+    void testFollowerPrintsWholeLinesThroughTruncationAndRotation() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("follow");
+        java.nio.file.Path log = dir.resolve("app.log");
+        java.nio.file.Files.write(log, "old (x)\npart".getBytes());
+        ByteArrayOutputStream got = new ByteArrayOutputStream();
+        ByteArrayOutputStream notes = new ByteArrayOutputStream();
+        Printtokens t = new Printtokens();
+        t.out = new PrintStream(got, true);
+        Follower f = new Follower(t, log, true);	/* from the end: "old (x)" is skipped */
+        f.log = new PrintStream(notes, true);
+        Thread th = new Thread(() -> {
+            try {
+                f.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        th.start();
+        try {
+            append(log, "ial 12");
+            Thread.sleep(200);
+            assertEquals("", got.toString());	/* the line isn't whole yet */
+            append(log, "\nnext\n");
+            waitFor(got, "identifier,\"partial\".\nnumeric,12.\nidentifier,\"next\".\n");
+
+            got.reset();
+            java.nio.file.Files.write(log, "a\n".getBytes());	/* truncated */
+            waitFor(got, "identifier,\"a\".\n");
+
+            got.reset();
+            append(log, "b");
+            java.nio.file.Files.move(log, dir.resolve("app.log.1"));
+            java.nio.file.Files.write(log, "c\n".getBytes());
+            waitFor(got, "identifier,\"b\".\nidentifier,\"c\".\n");
+        } finally {
+            f.close();
+            th.join(10000);
+        }
+        assertFalse(th.isAlive());
+        assertEquals(1, f.truncations);
+        assertEquals(1, f.rotations);
+        assertTrue(notes.toString().startsWith("truncated,\""), notes.toString());
+        assertEquals(5, f.counts[3]);
+        for (java.nio.file.Path p : new java.nio.file.Path[] {log, dir.resolve("app.log.1"), dir}) java.nio.file.Files.delete(p);
+    }
+
+    private static void append(java.nio.file.Path p, String s) throws IOException {
+        java.nio.file.Files.write(p, s.getBytes(), java.nio.file.StandardOpenOption.APPEND);
+    }
+
+    private static void waitFor(ByteArrayOutputStream out, String want) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!out.toString().equals(want) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(want, out.toString());
+    }
+
+    private List<String> tokensOf(Charstream cs) throws IOException {
+        List<String> toks = new java.util.ArrayList<>();
+        for (String tok; (tok = printtokens.get_token(cs)) != null; ) toks.add(tok);
+        return toks;
+    }
+
+    @Test
+    void testByteSourcesDecodeLikeAReader() throws IOException {
+        byte[] data = "caf\u00e9 (x) \"\u00e9t\u00e9\" \ud83d\ude00y ;\u00e9\n\u00e9 z".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        List<String> expected = tokensOf(new Charstream(new InputStreamReader(new ByteArrayInputStream(data))));
+        assertEquals(expected, tokensOf(new Charstream(new ByteArrayInputStream(data))));
+        assertEquals(expected, tokensOf(new Charstream(java.nio.channels.Channels.newChannel(new ByteArrayInputStream(data)))));
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(data)) {	/* splits every character */
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException { return super.read(b, off, Math.min(len, 1)); }
+        };
+        Charstream cs = new Charstream(trickle);
+        cs.track_positions(null);
+        assertEquals(expected, tokensOf(cs));
+        assertEquals(data.length, cs.offset());		/* offsets stay in bytes */
+        assertEquals(2, cs.token_line);
+        assertEquals(data.length - 1, cs.token_offset);
+        assertEquals(new String("\u00e9 ".getBytes(java.nio.charset.StandardCharsets.UTF_8)).length() + 1, cs.token_col);	/* columns count chars */
+    }
+
+    @Test
+    void testTokensketchRunMergesOneSketchPerWorker() throws IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("sketch");
+        for (int f = 0; f < 40; f++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i <= f; i++) sb.append("(w").append(i % 7).append(" and common)\n");
+            java.nio.file.Files.write(dir.resolve("f" + f + ".txt"), sb.toString().getBytes());
+        }
+        String[] outputs = new String[2];
+        int[] threads = {1, 4};
+        for (int i = 0; i < threads.length; i++) {
+            Printtokens t = new Printtokens();
+            t.threads = threads[i];
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            Tokensketch.run(t, dir, 3, 1 << 16, new PrintStream(bos));
+            outputs[i] = bos.toString();
+        }
+        assertEquals(outputs[0], outputs[1]);
+        assertTrue(outputs[1].contains("identifier,\"common\",820,+-") && outputs[1].contains("keyword,\"and\",820,+-"), outputs[1]);
+        assertTrue(outputs[1].contains("words,2460.\n"), outputs[1]);
+    }
+
+    @Test
+    void testShadowcheckKeepsLinesLongerThanAChunkWhole() throws IOException {
+        String word = "\u00e9".repeat(Shadowcheck.CHUNK / 2) + "x";	/* its UTF-8 would be cut mid-character */
+        byte[] data = ("(a " + word + " b)\nc\n").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        Shadowcheck s = new Shadowcheck(new Printtokens(), new Printtokens(), 1.0, new PrintStream(new ByteArrayOutputStream(), true));
+        ByteArrayOutputStream served = new ByteArrayOutputStream();
+        s.serve(new ByteArrayInputStream(data), new PrintStream(served, true));
+        s.close();
+        Charstream cs = new Charstream(new InputStreamReader(new ByteArrayInputStream(data)));
+        for (String tok; (tok = printtokens.get_token(cs)) != null; ) printtokens.print_token(tok);
+        assertArrayEquals(outputStream.toByteArray(), served.toByteArray());
+        assertEquals(0, s.divergences.get());
+    }
+
+    @Test
+    void testTreewatcherLeavesNoTempFileWhenAFileFails() throws Exception {
+        java.nio.file.Path src = java.nio.file.Files.createTempDirectory("src");
+        java.nio.file.Path mirror = java.nio.file.Files.createTempDirectory("mirror");
+        for (int i = 0; i < 200; i++) java.nio.file.Files.write(src.resolve("f" + i + ".txt"), ("(x" + i + ")").getBytes());
+        java.nio.file.Files.createDirectories(mirror.resolve("f7.txt.tokens"));
+        java.nio.file.Files.write(mirror.resolve("f7.txt.tokens/in-the-way"), new byte[1]);	/* the move onto it fails */
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        printtokens.threads = 4;
+        try (Treewatcher w = new Treewatcher(printtokens, src, mirror, 20)) {
+            w.log = new PrintStream(log, true);
+            w.bulk_pass();
+            assertEquals(199, w.runs.get());	/* every other file is written when bulk_pass returns */
+            assertEquals(597, w.total_tokens.get());
+        }
+        assertTrue(log.toString().contains("error,\"" + src.resolve("f7.txt") + "\""), log.toString());
+        try (java.util.stream.Stream<java.nio.file.Path> left = java.nio.file.Files.list(mirror)) {
+            assertEquals(200, left.count());
+        }
+    }
+
+    @Test
+    void testEngineRejectsANullOutput() {
+        assertThrows(NullPointerException.class, () -> Tokenengine.BUILTIN.open(new StringReader("a"), null));
+        assertThrows(NullPointerException.class, () -> Tokenengine.BUILTIN.open(new ByteArrayInputStream("a".getBytes()), null));
+        assertThrows(NullPointerException.class, () -> Tokenengine.BUILTIN.tokenize(new StringReader("a"), null));
+        assertThrows(NullPointerException.class, () -> Tokenengine.BUILTIN.tokenize(new ByteArrayInputStream("a".getBytes()), null));
+        assertThrows(NullPointerException.class, () -> Tokenengine.BUILTIN.tokenize(java.nio.channels.Channels.newChannel(new ByteArrayInputStream("a".getBytes())), null));
+        assertEquals("", outputStream.toString());
+    }
+
+    @Test
+    void testTokencursorOffsetsOfNonAsciiTokensAreByteOffsets() throws IOException {
+        byte[] data = "ab \u00e9t\u00e9 q\n\u00e9 z".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        Tokencursor cur = new Tokencursor(printtokens, new Charstream(new ByteArrayInputStream(data)));
+        long[] offsets = new long[5];
+        int n = 0;
+        while (cur.next()) offsets[n++] = cur.offset;
+        assertEquals(5, n);
+        assertArrayEquals(new long[] {0, 3, 9, 11, 14}, offsets);
+    }
+
+    @Test
+    void testTokenstoreKeepsNonAsciiTextAsUtf8() throws IOException {
+        String[] words = {"caf\u00e9", "\u0436\u0443\u043a", "x\u20acy", "\u1f600z", "plain"};
+        Tokenstore store = new Tokenstore(true);
+        long at = 0;
+        for (String w : words) {
+            store.add(Printtokens.identifier, at, w.toCharArray(), w.length());
+            at += w.getBytes(java.nio.charset.StandardCharsets.UTF_8).length + 1;
+        }
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(words[i], store.text(i));
+            assertEquals(words[i].getBytes(java.nio.charset.StandardCharsets.UTF_8).length, store.length(i));
+        }
+        assertEquals(words[4].length() + 1, at - store.offset(4));
+        store.close();
+    }
+
+    @Test
+    void testColumnsCountCharsForByteAndReaderSources() throws IOException {
+        String text = "ab \u00e9t\u00e9 q\n\u00e9\u00e9 z w\n";
+        byte[] data = text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        File testFile = createTempFile(text);
+        java.nio.file.Files.write(testFile.toPath(), data);
+        Lineindex index = new Lineindex(1);
+        Charstream bytes = new Charstream(new ByteArrayInputStream(data));
+        Charstream file = new Charstream(new FileInputStream(testFile));
+        Charstream chars = new Charstream(new java.io.InputStreamReader(new ByteArrayInputStream(data)));
+        file.track_positions(index);
+        bytes.track_positions(null);
+        chars.track_positions(null);
+        int n = 0;
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(testFile.toPath())) {
+            while (printtokens.get_token(chars) != null) {
+                assertNotNull(printtokens.get_token(bytes));
+                assertNotNull(printtokens.get_token(file));
+                assertEquals(chars.token_line, bytes.token_line);
+                assertEquals(chars.token_col, bytes.token_col);
+                assertEquals(chars.token_col, file.token_col);
+                long[] pos = index.locate(file.token_offset, ch);
+                assertEquals(chars.token_line, pos[0]);
+                assertEquals(chars.token_col, pos[1]);
+                n++;
+            }
+        }
+        assertEquals(6, n);
+        bytes.close();
+        file.close();
+        chars.close();
+    }
+
+    @Test
+    void testTokentableLongerQueryPrintsLineAndColumn() throws IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("table");
+        java.nio.file.Files.write(dir.resolve("a.txt"), "(x 1)\n  y  longword\n".getBytes());
+        java.nio.file.Files.write(dir.resolve("b.txt"), "\u00e9\nq anotherlongword\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        Tokentable.build(printtokens, dir).query("longer:identifier:5", System.out, 1);
+        assertEquals("file,\"a.txt\",11,8,2:6.\nfile,\"b.txt\",5,15,2:3.\n", outputStream.toString());
+        for (String f : new String[] {"a.txt", "b.txt"}) java.nio.file.Files.delete(dir.resolve(f));
+        java.nio.file.Files.delete(dir);
+    }
+
+    @Test
+    void testEngineTokenizesAChannelLikeAStream() {
+        byte[] data = "(and x \"s\") ;c\n12 @".getBytes();
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        long n = Tokenengine.BUILTIN.tokenize(new ByteArrayInputStream(data), new PrintStream(a));
+        assertEquals(n, Tokenengine.BUILTIN.tokenize(java.nio.channels.Channels.newChannel(new ByteArrayInputStream(data)), new PrintStream(b)));
+        assertEquals(8, n);
+        assertEquals(a.toString(), b.toString());
+    }
+
+    @Test
+    void testLineCacheIsOnlyAskedForWords() {
+        Printtokens t = new Printtokens();
+        t.cache = new Linecache(Linecache.DEFAULT_CAP);
+        t.out = new PrintStream(new ByteArrayOutputStream(), true);
+        for (String tok : new String[] {"(", ";c", "\"s\"", "12", "#a", "@", "(", ";c", "x", "and", "x", "and"})
+            t.print_token(tok);
+        assertEquals(2, t.cache.hits);
+        assertEquals(2, t.cache.misses);	/* x and and, the first time */
+    }
+
+    @Test
+    void testTreewatcherDropsEverythingUnderAMovedDirectory() throws Exception {
+        java.nio.file.Path src = java.nio.file.Files.createTempDirectory("src");
+        java.nio.file.Path mirror = java.nio.file.Files.createTempDirectory("mirror");
+        java.nio.file.Path away = java.nio.file.Files.createTempDirectory("away");
+        java.nio.file.Files.createDirectories(src.resolve("sub/deep"));
+        java.nio.file.Files.write(src.resolve("a.txt"), "and x".getBytes());
+        java.nio.file.Files.write(src.resolve("sub/b.txt"), "(y)".getBytes());
+        java.nio.file.Files.write(src.resolve("sub/deep/c.txt"), "@ z".getBytes());
+
+        try (Treewatcher w = new Treewatcher(printtokens, src, mirror, 20)) {
+            w.bulk_pass();
+            assertEquals(7, w.total_tokens.get());
+            assertEquals(1, w.total_errors.get());
+            Thread watcher = new Thread(() -> {
+                try { w.watch(); } catch (IOException e) { }
+            });
+            watcher.setDaemon(true);
+            watcher.start();
+
+            java.nio.file.Files.move(src.resolve("sub"), away.resolve("sub"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (w.total_tokens.get() != 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, w.total_tokens.get());
+            assertEquals(0, w.total_errors.get());
+            assertNull(w.stats_of(src.resolve("sub/deep/c.txt")));
+            assertFalse(java.nio.file.Files.exists(mirror.resolve("sub")));
+            assertTrue(java.nio.file.Files.exists(mirror.resolve("a.txt.tokens")));
+        }
+    }
 }
\ No newline at end of file